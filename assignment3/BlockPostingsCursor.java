@@ -0,0 +1,172 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A cursor over one record in the on-disk format of PostingsCodec.
+ * Documents are decoded one at a time from the data file. The offsets
+ * are in the positions file, which is only read when positions() is
+ * called: until then the cursor just counts the offsets it passes, and
+ * skips over them in the positions file once they are needed.
+ *
+ * advance() looks the target up in the skip table of the record and
+ * jumps straight to the block that may hold it, so the blocks in between
+ * are never read. Intersecting a rare term with a common term then reads
+ * about one block of the common term per document of the rare one.
+ *
+ * @author Zehua
+ */
+public class BlockPostingsCursor implements PostingsCursor {
+
+    private final ByteBuffer buf;
+    private final PersistentHashedIndex segment;
+    private final int docBase;
+    private final PostingsCodec.Header header;
+    private final int df;
+
+    /** Number of blocks, 0 if the record has no skip table. */
+    private final int blocks;
+
+    /** Position of the skip table and of the first posting in buf. */
+    private final int skipStart;
+    private final int postingsStart;
+
+    /** Index of the current document in the list. */
+    private int index = -1;
+
+    private int docID = -1;
+    private int freq = 0;
+
+    /** The offsets of the term, read from the positions file on the first call of positions(). */
+    private ByteBuffer positionsBuf = null;
+
+    /** Where the offsets not read yet start, relative to the offsets of the term. */
+    private int positionsPointer = 0;
+
+    /** Number of offsets from positionsPointer up to the current document. */
+    private int pendingPositions = 0;
+
+    private int[] positions = null;
+
+
+    /**
+     * @param body  The record body, positioned after the term
+     * @param segment The index holding the record, whose positions file has the offsets
+     */
+    public BlockPostingsCursor(ByteBuffer body, PersistentHashedIndex segment) {
+        this.buf = body.duplicate();
+        this.segment = segment;
+        this.docBase = segment.docBase;
+        this.header = PostingsCodec.readHeader(buf);
+        this.df = header.df;
+        this.blocks = PostingsCodec.numBlocks(df);
+        this.skipStart = buf.position();
+        this.postingsStart = skipStart + blocks * PostingsCodec.SKIP_ENTRY_SIZE;
+        buf.position(postingsStart);
+    }
+
+    @Override
+    public int docID() {
+        return docID;
+    }
+
+    @Override
+    public int nextDoc() {
+        if (index + 1 >= df) {
+            index = df;
+            freq = 0;
+            return docID = NO_MORE_DOCS;
+        }
+        if (positions == null) {
+            pendingPositions += freq;
+        }
+        docID = (index < 0 ? docBase : docID) + PostingsCodec.readVInt(buf);
+        freq = PostingsCodec.readVInt(buf);
+        positions = null;
+        index++;
+        return docID;
+    }
+
+    @Override
+    public int advance(int target) {
+        if (docID >= target) {
+            return docID;
+        }
+        if (blocks > 0) {
+            // the first block whose last docID is at least target
+            int low = Math.max(index, 0) / PostingsCodec.BLOCK_SIZE;
+            int high = blocks;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (docBase + skipEntry(mid, 0) < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low == blocks) {
+                index = df;
+                freq = 0;
+                return docID = NO_MORE_DOCS;
+            }
+            int firstInBlock = low * PostingsCodec.BLOCK_SIZE;
+            if (low > 0 && firstInBlock > index + 1) {
+                // continue from the end of the block before
+                docID = docBase + skipEntry(low - 1, 0);
+                buf.position(postingsStart + skipEntry(low - 1, 1));
+                positionsPointer = skipEntry(low - 1, 2);
+                pendingPositions = 0;
+                index = firstInBlock - 1;
+                freq = 0;
+                positions = null;
+            }
+        }
+        while (nextDoc() < target) {
+        }
+        return docID;
+    }
+
+    /**
+     * Reads a field of an entry in the skip table: 0 for the last docID
+     * of the block, 1 for its end, 2 for the end of its offsets.
+     */
+    private int skipEntry(int block, int field) {
+        return buf.getInt(skipStart + block * PostingsCodec.SKIP_ENTRY_SIZE + 4 * field);
+    }
+
+    @Override
+    public int freq() {
+        return freq;
+    }
+
+    @Override
+    public int[] positions() {
+        if (positions == null) {
+            if (positionsBuf == null) {
+                positionsBuf = segment.readPositions(header.positionsStart, (int)header.positionsLength);
+            }
+            ByteBuffer in = positionsBuf.duplicate();
+            in.position(positionsPointer);
+            PostingsCodec.skipVInts(in, pendingPositions);
+            positions = new int[freq];
+            int offset = 0;
+            for (int j = 0; j < freq; j++) {
+                offset += PostingsCodec.readVInt(in);
+                positions[j] = offset;
+            }
+            positionsPointer = in.position();
+            pendingPositions = 0;
+        }
+        return positions;
+    }
+
+    @Override
+    public int cost() {
+        return df;
+    }
+}
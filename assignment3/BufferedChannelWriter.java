@@ -0,0 +1,112 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes sequentially to a FileChannel through one large direct buffer,
+ * so that writing many small records costs one system call per buffer
+ * instead of one per record. A record that does not fit in the buffer
+ * is written together with the buffered bytes in one gather write.
+ *
+ * @author Zehua
+ */
+public class BufferedChannelWriter {
+
+    /** Default size of the write buffer (1 MB). */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer;
+
+    /** The position in the file of the first byte in the buffer. */
+    private long flushed;
+
+    public BufferedChannelWriter(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public BufferedChannelWriter(FileChannel channel, int bufferSize) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.flushed = channel.position();
+    }
+
+    /**
+     * The position in the file where the next byte will be written.
+     */
+    public long position() {
+        return flushed + buffer.position();
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensureRemaining(4);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        ensureRemaining(8);
+        buffer.putLong(value);
+    }
+
+    public void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (length <= buffer.remaining()) {
+            buffer.put(data, offset, length);
+            return;
+        }
+        if (length < buffer.capacity()) {
+            flush();
+            buffer.put(data, offset, length);
+            return;
+        }
+        buffer.flip();
+        ByteBuffer[] buffers = { buffer, ByteBuffer.wrap(data, offset, length) };
+        long remaining = buffer.remaining() + (long)length;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        flushed = channel.position();
+        buffer.clear();
+    }
+
+    /**
+     * Makes sure the next n bytes (at most the buffer size) can be put in
+     * the buffer returned by buffer().
+     */
+    public void ensureRemaining(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flush();
+        }
+    }
+
+    /**
+     * The write buffer itself, for callers that serialize straight into it
+     * after ensureRemaining.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Writes all buffered bytes to the channel.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        flushed = channel.position();
+        buffer.clear();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The decoded docIDs and term frequencies of one term in one index, as
+ * kept in the PostingsCache. The offsets stay in the positions file. The
+ * place of every document's offsets there is found on the first call of
+ * positions() by one pass over them, so a term that is never used in a
+ * phrase never reads the positions file.
+ *
+ * @author Zehua
+ */
+public class CachedPostings {
+
+    /** Bytes taken by the object and array headers of an entry. */
+    private static final int OVERHEAD = 128;
+
+    private final PersistentHashedIndex segment;
+    private final long positionsStart;
+    private final int positionsLength;
+
+    final int[] docIDs;
+    final int[] freqs;
+
+    /** The offsets of the term and where each document's start, once they are needed. */
+    private ByteBuffer positions;
+    private int[] positionStarts;
+
+
+    private CachedPostings(PersistentHashedIndex segment, PostingsCodec.Header header) {
+        this.segment = segment;
+        this.positionsStart = header.positionsStart;
+        this.positionsLength = (int)header.positionsLength;
+        this.docIDs = new int[header.df];
+        this.freqs = new int[header.df];
+    }
+
+    /**
+     * Decodes the docIDs and term frequencies of a record.
+     *
+     * @param body    The record body, positioned after the term
+     * @param segment The index holding the record
+     */
+    public static CachedPostings decode(ByteBuffer body, PersistentHashedIndex segment) {
+        ByteBuffer buf = body.duplicate();
+        PostingsCodec.Header header = PostingsCodec.readHeader(buf);
+        buf.position(buf.position() + PostingsCodec.numBlocks(header.df) * PostingsCodec.SKIP_ENTRY_SIZE);
+        CachedPostings postings = new CachedPostings(segment, header);
+        int docID = segment.docBase;
+        for (int i = 0; i < header.df; i++) {
+            docID += PostingsCodec.readVInt(buf);
+            postings.docIDs[i] = docID;
+            postings.freqs[i] = PostingsCodec.readVInt(buf);
+        }
+        return postings;
+    }
+
+    /**
+     * The heap size of a decoded list of df documents in bytes, counting
+     * the three int arrays (docIDs, frequencies and, once positions are
+     * used, the starts of the offsets).
+     */
+    static long weight(int df) {
+        return OVERHEAD + 12L * df;
+    }
+
+    public long weight() {
+        return weight(docIDs.length);
+    }
+
+    public int size() {
+        return docIDs.length;
+    }
+
+    /**
+     * The offsets of the i-th document.
+     */
+    int[] positions(int i) {
+        ByteBuffer in;
+        synchronized (this) {
+            if (positionStarts == null) {
+                positions = segment.readPositions(positionsStart, positionsLength);
+                int[] starts = new int[docIDs.length];
+                ByteBuffer scan = positions.duplicate();
+                for (int j = 0; j < docIDs.length; j++) {
+                    starts[j] = scan.position();
+                    PostingsCodec.skipVInts(scan, freqs[j]);
+                }
+                positionStarts = starts;
+            }
+            in = positions.duplicate();
+        }
+        in.position(positionStarts[i]);
+        int[] offsets = new int[freqs[i]];
+        int offset = 0;
+        for (int j = 0; j < freqs[i]; j++) {
+            offset += PostingsCodec.readVInt(in);
+            offsets[j] = offset;
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns a new cursor over the list.
+     */
+    public PostingsCursor cursor() {
+        return new ListPostingsCursor(docIDs, freqs, docIDs.length) {
+            @Override
+            public int[] positions() {
+                return CachedPostings.this.positions(index());
+            }
+        };
+    }
+}
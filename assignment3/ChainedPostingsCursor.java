@@ -0,0 +1,84 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+/**
+ * One cursor over the postings of a term in several segments. The
+ * segments hold increasing docID ranges, so the cursors of the parts are
+ * simply run one after the other.
+ *
+ * @author Zehua
+ */
+public class ChainedPostingsCursor implements PostingsCursor {
+
+    private final PostingsCursor[] parts;
+    private final int cost;
+
+    /** The part the cursor is in. */
+    private int part = 0;
+
+    private int docID = -1;
+
+
+    /**
+     * @param parts The cursors of the parts, in docID order
+     */
+    public ChainedPostingsCursor(PostingsCursor[] parts) {
+        this.parts = parts;
+        int sum = 0;
+        for (PostingsCursor cursor: parts) {
+            sum += cursor.cost();
+        }
+        this.cost = sum;
+    }
+
+    @Override
+    public int docID() {
+        return docID;
+    }
+
+    @Override
+    public int nextDoc() {
+        while (part < parts.length) {
+            int doc = parts[part].nextDoc();
+            if (doc != NO_MORE_DOCS) {
+                return docID = doc;
+            }
+            part++;
+        }
+        return docID = NO_MORE_DOCS;
+    }
+
+    @Override
+    public int advance(int target) {
+        if (docID >= target) {
+            return docID;
+        }
+        while (part < parts.length) {
+            int doc = parts[part].advance(target);
+            if (doc != NO_MORE_DOCS) {
+                return docID = doc;
+            }
+            part++;
+        }
+        return docID = NO_MORE_DOCS;
+    }
+
+    @Override
+    public int freq() {
+        return part < parts.length ? parts[part].freq() : 0;
+    }
+
+    @Override
+    public int[] positions() {
+        return parts[part].positions();
+    }
+
+    @Override
+    public int cost() {
+        return cost;
+    }
+}
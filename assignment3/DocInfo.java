@@ -0,0 +1,255 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The binary docInfo file of an index, memory-mapped so that the name,
+ * length, file size and modification time of a document are found in
+ * constant time without parsing anything or keeping it on the heap.
+ *
+ * The file holds the documents docBase .. docBase + docCount - 1:
+ *
+ *   int    magic number, version, docBase, docCount, number of documents present
+ *   int    reserved
+ *   int    length of every document in tokens, -1 if the document is absent
+ *   long   file size of every document, -1 if unknown
+ *   long   modification time of every document, -1 if unknown
+ *   long   docCount + 1 offsets into the names, document i has the bytes
+ *          offset[i] .. offset[i + 1] - 1
+ *   byte   the UTF-8 names of the documents
+ *
+ * Opened files are registered by their docBase, and the DocInfoMaps in
+ * Index look documents up in the registered files.
+ *
+ * @author Zehua
+ */
+public class DocInfo {
+
+    /** Magic number at the start of a binary docInfo file ("KTHD"). */
+    public static final int MAGIC = 0x4B544844;
+
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 24;
+
+    final int docBase;
+    final int docCount;
+    final int present;
+
+    private final MappedFile map;
+    private final long lengthsStart;
+    private final long sizesStart;
+    private final long modifiedStart;
+    private final long offsetsStart;
+    private final long namesStart;
+
+    /** The registered files by docBase. The map is replaced, never changed. */
+    private static volatile TreeMap<Integer,DocInfo> registry = new TreeMap<Integer,DocInfo>();
+
+    /** Incremented on every change of the registry. */
+    private static volatile int registryVersion = 0;
+
+    /** The number of documents in the registered files. */
+    private static volatile int registeredDocs = 0;
+
+
+    private DocInfo(MappedFile map) throws IOException {
+        this.map = map;
+        if (map.length() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException("not a binary docInfo file");
+        }
+        docBase = map.getInt(8);
+        docCount = map.getInt(12);
+        present = map.getInt(16);
+        lengthsStart = HEADER_SIZE;
+        sizesStart = lengthsStart + 4L * docCount;
+        modifiedStart = sizesStart + 8L * docCount;
+        offsetsStart = modifiedStart + 8L * docCount;
+        namesStart = offsetsStart + 8L * (docCount + 1);
+    }
+
+    /**
+     * Returns true if the file starts with the binary docInfo header.
+     */
+    public static boolean isBinary(File f) throws IOException {
+        if (f.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Maps a binary docInfo file and registers it, replacing the files
+     * whose documents it covers.
+     */
+    public static DocInfo open(File f) throws IOException {
+        DocInfo info = new DocInfo(new MappedFile(f));
+        synchronized (DocInfo.class) {
+            TreeMap<Integer,DocInfo> updated = new TreeMap<Integer,DocInfo>(registry);
+            updated.values().removeIf(other -> other.docBase >= info.docBase &&
+                                      other.docBase + other.docCount <= info.docBase + info.docCount);
+            updated.put(info.docBase, info);
+            setRegistry(updated);
+        }
+        return info;
+    }
+
+    /**
+     * Removes the file from the registry, unless it has been replaced already.
+     */
+    public void close() {
+        synchronized (DocInfo.class) {
+            if (registry.get(docBase) == this) {
+                TreeMap<Integer,DocInfo> updated = new TreeMap<Integer,DocInfo>(registry);
+                updated.remove(docBase);
+                setRegistry(updated);
+            }
+        }
+    }
+
+    /** Publishes a new registry. Called with the DocInfo class lock held. */
+    private static void setRegistry(TreeMap<Integer,DocInfo> updated) {
+        int docs = 0;
+        for (DocInfo info: updated.values()) {
+            docs += info.present;
+        }
+        registeredDocs = docs;
+        registry = updated;
+        registryVersion++;
+    }
+
+    /**
+     * Writes the documents docBase .. docBase + docCount - 1 of the maps
+     * in Index to a binary docInfo file.
+     */
+    public static void write(File f, int docBase, int docCount) throws IOException {
+        byte[][] names = new byte[docCount][];
+        long namesSize = 0;
+        int present = 0;
+        for (int i = 0; i < docCount; i++) {
+            String name = Index.docNames.get(docBase + i);
+            if (name != null) {
+                names[i] = name.getBytes(StandardCharsets.UTF_8);
+                namesSize += names[i].length;
+                present++;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            BufferedChannelWriter writer = new BufferedChannelWriter(channel);
+            writer.writeInt(MAGIC);
+            writer.writeInt(VERSION);
+            writer.writeInt(docBase);
+            writer.writeInt(docCount);
+            writer.writeInt(present);
+            writer.writeInt(0);
+            for (int i = 0; i < docCount; i++) {
+                Integer length = Index.docLengths.get(docBase + i);
+                writer.writeInt(names[i] == null ? -1 : length == null ? 0 : length);
+            }
+            for (int i = 0; i < docCount; i++) {
+                writer.writeLong(Index.docFileSizes.getOrDefault(docBase + i, -1L));
+            }
+            for (int i = 0; i < docCount; i++) {
+                writer.writeLong(Index.docModifiedTimes.getOrDefault(docBase + i, -1L));
+            }
+            long offset = 0;
+            for (int i = 0; i < docCount; i++) {
+                writer.writeLong(offset);
+                offset += names[i] == null ? 0 : names[i].length;
+            }
+            writer.writeLong(offset);
+            for (int i = 0; i < docCount; i++) {
+                if (names[i] != null) {
+                    writer.write(names[i]);
+                }
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * The registered file holding the document, or null.
+     */
+    static DocInfo find(int docID) {
+        Map.Entry<Integer,DocInfo> entry = registry.floorEntry(docID);
+        if (entry == null) {
+            return null;
+        }
+        DocInfo info = entry.getValue();
+        return info.contains(docID) ? info : null;
+    }
+
+    /** The registered files in docID order. */
+    static List<DocInfo> registered() {
+        return Collections.unmodifiableList(new ArrayList<DocInfo>(registry.values()));
+    }
+
+    static int getRegistryVersion() {
+        return registryVersion;
+    }
+
+    /** The number of documents in the registered files. */
+    static int getRegisteredCount() {
+        return registeredDocs;
+    }
+
+    /**
+     * Loads the mapping into physical memory.
+     *
+     * @return The size of the file in bytes
+     */
+    long load() {
+        map.load();
+        return map.length();
+    }
+
+    public boolean contains(int docID) {
+        return docID >= docBase && docID < docBase + docCount &&
+            map.getInt(lengthsStart + 4L * (docID - docBase)) >= 0;
+    }
+
+    public Integer getLength(int docID) {
+        int length = map.getInt(lengthsStart + 4L * (docID - docBase));
+        return length < 0 ? null : length;
+    }
+
+    public Long getFileSize(int docID) {
+        long size = map.getLong(sizesStart + 8L * (docID - docBase));
+        return size < 0 ? null : size;
+    }
+
+    public Long getModifiedTime(int docID) {
+        long time = map.getLong(modifiedStart + 8L * (docID - docBase));
+        return time < 0 ? null : time;
+    }
+
+    public String getName(int docID) {
+        long start = map.getLong(offsetsStart + 8L * (docID - docBase));
+        long end = map.getLong(offsetsStart + 8L * (docID - docBase + 1));
+        ByteBuffer bytes = map.slice(namesStart + start, (int)(end - start));
+        byte[] name = new byte[bytes.remaining()];
+        bytes.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+}
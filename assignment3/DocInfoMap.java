@@ -0,0 +1,183 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One column of the document information (names, lengths, ...) as a map
+ * from docID. Documents in a registered DocInfo file are read from its
+ * mapping; documents put into the map are kept in a ConcurrentHashMap on
+ * top, until a DocInfo file holding them is registered.
+ *
+ * Searches look documents up and ask for the size while the indexer puts
+ * new documents, so get and size take no lock: the registry of DocInfo
+ * is replaced rather than changed, and the number of documents put that
+ * are in no file is kept as a count. Only put, clear and dropping the
+ * documents of a newly registered file are synchronized.
+ *
+ * @author Zehua
+ */
+public class DocInfoMap<V> extends AbstractMap<Integer,V> {
+
+    /** Reads the value of a document from a DocInfo file. */
+    public interface Column<V> {
+        V get(DocInfo info, int docID);
+    }
+
+    private final Column<V> column;
+
+    /** Documents put into the map. */
+    private final ConcurrentHashMap<Integer,V> added = new ConcurrentHashMap<Integer,V>();
+
+    /**
+     * Number of keys in added that are in no registered file. Changed
+     * with the map's lock held.
+     */
+    private volatile int unregistered = 0;
+
+    /** The registry version the entries of added were last dropped at. */
+    private volatile int evictedVersion = 0;
+
+
+    public DocInfoMap(Column<V> column) {
+        this.column = column;
+    }
+
+    /**
+     * Drops the documents that have been written to a registered file
+     * since the last call, so they are only kept once, off the heap.
+     */
+    private synchronized void evict() {
+        int version = DocInfo.getRegistryVersion();
+        if (version == evictedVersion) {
+            return;
+        }
+        added.keySet().removeIf(docID -> DocInfo.find(docID) != null);
+        unregistered = added.size();
+        evictedVersion = version;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (!(key instanceof Integer)) {
+            return null;
+        }
+        if (evictedVersion != DocInfo.getRegistryVersion()) {
+            evict();
+        }
+        V value = added.get(key);
+        if (value != null) {
+            return value;
+        }
+        int docID = (Integer)key;
+        DocInfo info = DocInfo.find(docID);
+        return info == null ? null : column.get(info, docID);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public synchronized V put(Integer key, V value) {
+        V previous = get(key);
+        if (added.put(key, value) == null && DocInfo.find(key) == null) {
+            unregistered++;
+        }
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        if (evictedVersion != DocInfo.getRegistryVersion()) {
+            evict();
+        }
+        return DocInfo.getRegisteredCount() + unregistered;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public synchronized void clear() {
+        added.clear();
+        unregistered = 0;
+    }
+
+    /**
+     * The documents of the registered files in docID order, followed by
+     * the documents put into the map that are in no registered file.
+     */
+    @Override
+    public Set<Map.Entry<Integer,V>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer,V>>() {
+            @Override
+            public int size() {
+                return DocInfoMap.this.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<Integer,V>> iterator() {
+                final List<DocInfo> files = DocInfo.registered();
+                HashMap<Integer,V> copy = new HashMap<Integer,V>(added);
+                copy.keySet().removeIf(docID -> DocInfo.find(docID) != null);
+                final Iterator<Map.Entry<Integer,V>> rest = copy.entrySet().iterator();
+                return new Iterator<Map.Entry<Integer,V>>() {
+                    int file = 0;
+                    int docID = files.isEmpty() ? 0 : files.get(0).docBase - 1;
+                    Map.Entry<Integer,V> next = advance();
+
+                    private Map.Entry<Integer,V> advance() {
+                        while (file < files.size()) {
+                            DocInfo info = files.get(file);
+                            while (++docID < info.docBase + info.docCount) {
+                                if (info.contains(docID)) {
+                                    V value = added.get(docID);
+                                    if (value == null) {
+                                        value = column.get(info, docID);
+                                    }
+                                    return new SimpleImmutableEntry<Integer,V>(docID, value);
+                                }
+                            }
+                            file++;
+                            if (file < files.size()) {
+                                docID = files.get(file).docBase - 1;
+                            }
+                        }
+                        return rest.hasNext() ? rest.next() : null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<Integer,V> next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<Integer,V> current = next;
+                        next = advance();
+                        return current;
+                    }
+                };
+            }
+        };
+    }
+}
@@ -26,17 +26,17 @@ public class Engine {
     /** The searcher used to search the index. */
     Searcher searcher;
     
-    /** The spelling checker. */
-    SpellChecker speller;
-
     /** The engine GUI. */
     SearchGUI gui;
 
     /**  Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /**  Lock to prevent simultaneous access to the index. */
-    Object indexLock = new Object();
+    /**
+     *  How often the documents indexed so far are made visible to searches,
+     *  in milliseconds. 0 only makes them visible when indexing is done.
+     */
+    long refresh_millis = 10000;
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
@@ -50,6 +50,18 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Only index new and changed files into a new segment of ./index. */
+    boolean is_incremental = false;
+
+    /** The number of most frequent terms to warm up after loading the index, 0 for no warm-up. */
+    int warm_terms = 0;
+
+    /** The number of threads reading and tokenizing the files, 1 for reading them on the indexing thread. */
+    int threads = 1;
+
+    /** The log of the queries searched, or null if queries are not logged. */
+    QueryLog queryLog = null;
+
 
     /* ----------------------------------------------- */
 
@@ -61,34 +73,67 @@ public class Engine {
     public Engine( String[] args ) {
 	decodeArgs( args );
 	indexer = new Indexer( index, patterns_file );
+        if ( is_incremental ) {
+            indexer.setIncremental( (SegmentedIndex)index );
+        }
+        indexer.setRefreshInterval( refresh_millis );
+        indexer.setThreads( threads );
 	searcher = new Searcher( index );
-        speller = new SpellChecker(index, ((HashedIndex)index).getKgIndex());
 	gui = new SearchGUI( this );
 	gui.init();
 	/* 
-	 *   Calls the indexer to index the chosen directory structure.
-	 *   Access to the index is synchronized since we don't want to 
-	 *   search at the same time we're indexing new files (this might 
-	 *   corrupt the index).
+	 *   Indexes the chosen directory structure on a thread of its own.
+	 *   Searches do not wait for it: they run on the snapshot of the
+	 *   index published by the last refresh.
 	 */
 	if (is_indexing) {
-            synchronized ( indexLock ) {
-                gui.displayInfoText( "Indexing, please wait..." );
-                long startTime = System.currentTimeMillis();
-                for ( int i=0; i<dirNames.size(); i++ ) {
-                    File dokDir = new File( dirNames.get( i ));
-                    indexer.processFiles( dokDir );
-                }
+            new Thread( this::indexFiles, "indexer" ).start();
+        } else {
+            long startTime = System.currentTimeMillis();
+            if ( index instanceof PersistentHashedIndex ) {
+                // nothing will be written, so all searches can share read-only mappings
+                ((PersistentHashedIndex)index).mapFiles();
+            }
+            if ( warm_terms > 0 ) {
+                new IndexWarmer( index, warm_terms, queryLog ).warmUp();
                 long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
-                index.cleanup();
-                // let searcher to load pagerank file
-                searcher.loadPageRankFile();
+                gui.displayInfoText( String.format( "Index is loaded from disk and warmed up in %.1f seconds", elapsedTime/1000.0 ));
+            } else {
+                gui.displayInfoText( "Index is loaded from disk" );
+            }
+        }
+    }
+
+
+    /**
+     *   Indexes all chosen directories and files, and publishes the
+     *   finished index to the searches.
+     */
+    private void indexFiles() {
+        gui.displayInfoText( "Indexing, please wait..." );
+        long startTime = System.currentTimeMillis();
+        if ( threads > 1 ) {
+            List<File> dokDirs = new ArrayList<File>();
+            for ( String dirName : dirNames ) {
+                dokDirs.add( new File( dirName ));
             }
+            indexer.processFilesInParallel( dokDirs );
         } else {
-            gui.displayInfoText( "Index is loaded from disk" );
+            for ( int i=0; i<dirNames.size(); i++ ) {
+                File dokDir = new File( dirNames.get( i ));
+                indexer.processFiles( dokDir );
+            }
         }
+        indexer.deleteMissingFiles();
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
+        index.cleanup();
+        // let searcher to load pagerank file
+        searcher.loadPageRankFile();
         
+        if ( !(index instanceof HashedIndex) ) {
+            return;
+        }
         KGramIndex kgIndex = ((HashedIndex)index).getKgIndex();
         List<KGramPostingsEntry> ve = kgIndex.getPostings("ve");
         System.err.println("The first 10 of them are (ve):");
@@ -104,6 +149,15 @@ public class Engine {
     }
 
 
+    /**
+     *   A spelling checker on the current snapshot of the index.
+     */
+    SpellChecker getSpeller() {
+        Index snapshot = index.snapshot();
+        return new SpellChecker( snapshot, snapshot instanceof HashedIndex ? ((HashedIndex)snapshot).getKgIndex() : null );
+    }
+
+
     /* ----------------------------------------------- */
 
     /**
@@ -140,6 +194,35 @@ public class Engine {
                 i++;
                 is_indexing = false;
             }
+	    else if ( "-inc".equals( args[i] )) {
+                i++;
+                is_incremental = true;
+                index = new SegmentedIndex();
+            }
+	    else if ( "-warm".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    warm_terms = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-refresh".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    refresh_millis = (long)(Double.parseDouble( args[i++] ) * 1000);
+		}
+	    }
+	    else if ( "-threads".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    threads = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-ql".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    queryLog = new QueryLog( args[i++] );
+		}
+	    }
 	    else {
 		System.err.println( "Unknown option: " + args[i] );
 		break;
@@ -148,6 +231,16 @@ public class Engine {
     }
 
 
+    /**
+     *   Adds a query to the query log, if there is one.
+     */
+    void logQuery( String queryString ) {
+        if ( queryLog != null ) {
+            queryLog.append( queryString );
+        }
+    }
+
+
     /* ----------------------------------------------- */
 
 
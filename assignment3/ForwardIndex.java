@@ -0,0 +1,128 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.util.Arrays;
+
+/**
+ * The term vectors of the documents: for every document the IDs of its
+ * distinct terms in increasing order, and their term frequencies. The
+ * vectors of all documents are packed one after the other into two int
+ * arrays, so a document costs one int plus two ints per distinct term.
+ *
+ * Documents are added in increasing docID order, and only appended, so a
+ * snapshot can share the arrays: later documents are only written after
+ * the end of the snapshot, or into new arrays when the arrays grow.
+ *
+ * @author Zehua
+ */
+public class ForwardIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Where the vector of every document starts in termIDs and freqs, by
+     * docID. The vector of docID ends where the one of docID + 1 starts.
+     */
+    private int[] docStarts = new int[MIN_CAPACITY];
+
+    /** The number of docIDs with a vector, one more than the last docID added. */
+    private int docCount = 0;
+
+    /** The packed term IDs and term frequencies. */
+    private int[] termIDs = EMPTY;
+    private int[] freqs = EMPTY;
+
+    /** The number of ints used in termIDs and freqs. */
+    private int size = 0;
+
+
+    public ForwardIndex() {
+    }
+
+    private ForwardIndex(ForwardIndex other) {
+        docStarts = other.docStarts;
+        docCount = other.docCount;
+        termIDs = other.termIDs;
+        freqs = other.freqs;
+        size = other.size;
+    }
+
+    /**
+     * A view of the documents added so far, that does not change when
+     * more documents are added.
+     */
+    public ForwardIndex snapshot() {
+        return new ForwardIndex(this);
+    }
+
+    /**
+     * Adds the vector of a document. The docIDs skipped since the last
+     * document get empty vectors.
+     *
+     * @param termIDs The term IDs of the document in increasing order
+     * @param freqs The term frequencies of the terms
+     * @param n The number of terms
+     */
+    public void add(int docID, int[] termIDs, int[] freqs, int n) {
+        if (docID < docCount) {
+            throw new IllegalArgumentException("Document " + docID + " added after document " + (docCount - 1));
+        }
+        if (docID + 2 > docStarts.length) {
+            docStarts = Arrays.copyOf(docStarts, Math.max(docID + 2, docStarts.length + (docStarts.length >> 1)));
+        }
+        if (size + n > this.termIDs.length) {
+            int capacity = Math.max(size + n, Math.max(MIN_CAPACITY, size + (size >> 1)));
+            this.termIDs = Arrays.copyOf(this.termIDs, capacity);
+            this.freqs = Arrays.copyOf(this.freqs, capacity);
+        }
+        System.arraycopy(termIDs, 0, this.termIDs, size, n);
+        System.arraycopy(freqs, 0, this.freqs, size, n);
+        for (int d = docCount + 1; d <= docID; d++) {
+            docStarts[d] = size;
+        }
+        size += n;
+        docStarts[docID + 1] = size;
+        docCount = docID + 1;
+    }
+
+    /** One more than the last docID with a vector. */
+    public int getDocumentCount() {
+        return docCount;
+    }
+
+    /** The number of distinct terms of the document. */
+    public int length(int docID) {
+        return docID < 0 || docID >= docCount ? 0 : docStarts[docID + 1] - docStarts[docID];
+    }
+
+    /** The IDs of the distinct terms of the document, in increasing order. */
+    public int[] getTermIDs(int docID) {
+        if (docID < 0 || docID >= docCount) {
+            return EMPTY;
+        }
+        return Arrays.copyOfRange(termIDs, docStarts[docID], docStarts[docID + 1]);
+    }
+
+    /** The term frequencies of the terms of the document, in the order of getTermIDs. */
+    public int[] getTermFrequencies(int docID) {
+        if (docID < 0 || docID >= docCount) {
+            return EMPTY;
+        }
+        return Arrays.copyOfRange(freqs, docStarts[docID], docStarts[docID + 1]);
+    }
+
+    /** The frequency of the term in the document, 0 if it does not occur. */
+    public int getTermFrequency(int docID, int termID) {
+        if (docID < 0 || docID >= docCount) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(termIDs, docStarts[docID], docStarts[docID + 1], termID);
+        return i < 0 ? 0 : freqs[i];
+    }
+}
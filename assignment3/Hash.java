@@ -24,6 +24,19 @@ public class Hash {
         
         return hash % TableSize;
     }
+    
+    /**
+     * A 64-bit FNV-1a hash of the term, used as its fingerprint in the
+     * persistent dictionary. It is never 0, since 0 marks an empty slot.
+     */
+    public static long fingerprint(String term) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            hash ^= term.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
 
     public long getTableSize() {
         return TableSize;
@@ -1,35 +1,107 @@
-/*  
+/*
  *   This file is part of the computer assignment for the
  *   Information Retrieval course at KTH.
- * 
+ *
  *   Johan Boye, 2017
- */  
+ */
 
 
 package ir;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 
 
 /**
- *   Implements an inverted index as a Hashtable from words to PostingsLists.
+ *   Implements an inverted index as an array of PostingsLists, indexed by
+ *   the term IDs of a TermDictionary that is shared with the k-gram index.
+ *
+ *   The arrays are not thread-safe, so searches run on a frozen copy that
+ *   is published by refresh: the array of the last copy with new copies of
+ *   the postings lists that got documents since. Once the index is cleaned
+ *   up nothing is inserted any more, and searches run on the index itself.
  */
 public class HashedIndex implements Index {
 
 
-    /** The index as a hashtable. */
-    private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
-    
-    public HashMap<Integer, HashMap<String, Boolean>> docIndex = new HashMap();
+    /** The terms of the index and their IDs. */
+    private TermDictionary terms;
+
+    /** The postings lists by term ID. */
+    private PostingsList[] index;
+
+    /**
+     *  The total and the highest term frequency of every term by term ID,
+     *  over the documents before the one being inserted.
+     */
+    private long[] ttfs;
+    private int[] maxTfs;
+
+    /** The term vectors of the documents before the one being inserted. */
+    private ForwardIndex forwardIndex;
+
+    /** The IDs of the distinct terms of the document being inserted. */
+    private int[] docTerms = new int[16];
+    private int[] docFreqs = new int[16];
+    private int docTermCount = 0;
+
+
+    private KGramIndex kgIndex;
+
+    /** Incremented by every insert. */
+    private long modCount = 0;
+
+    /** The view of the index that searches run on. */
+    private volatile HashedIndex snapshot;
 
+    /** The IDs of the terms that got documents since the last refresh. */
+    private int[] changedTerms = new int[16];
+    private int changedCount = 0;
 
-    private KGramIndex kgIndex = new KGramIndex(2);
+    /** The last document inserted, and the last one in the snapshot. */
+    private int lastDocID = -1;
+    private int publishedDocID = -1;
+
+
+    public HashedIndex() {
+        terms = new TermDictionary();
+        index = new PostingsList[16];
+        ttfs = new long[16];
+        maxTfs = new int[16];
+        forwardIndex = new ForwardIndex();
+        kgIndex = new KGramIndex(2, terms);
+        snapshot = new HashedIndex(new TermDictionary(), new PostingsList[0], new long[0], new int[0],
+                                   forwardIndex.snapshot(), 0);
+    }
+
+    /**
+     *  A frozen copy, without a k-gram index while the index is being built.
+     */
+    private HashedIndex(TermDictionary terms, PostingsList[] index, long[] ttfs, int[] maxTfs,
+                        ForwardIndex forwardIndex, long modCount) {
+        this.terms = terms;
+        this.index = index;
+        this.ttfs = ttfs;
+        this.maxTfs = maxTfs;
+        this.forwardIndex = forwardIndex;
+        this.modCount = modCount;
+        snapshot = this;
+    }
 
     public KGramIndex getKgIndex() {
         return kgIndex;
     }
-    
+
+    public TermDictionary getTermDictionary() {
+        return terms;
+    }
+
+    /**
+     *  The term vectors of the documents, by term IDs of getTermDictionary.
+     */
+    public ForwardIndex getForwardIndex() {
+        return forwardIndex;
+    }
+
     /**
      *  Inserts this token in the hashtable.
      */
@@ -37,23 +109,93 @@ public class HashedIndex implements Index {
         //
         // YOUR CODE HERE
         //
-        PostingsList postingList = index.get(token);
+        modCount++;
+        postingsForInsert(token, docID).addDocOff(docID, offset);
+    }
+
+    /**
+     *  Inserts all occurrences of the token in the document at once.
+     */
+    @Override
+    public void insert( String token, int docID, int[] offsets ) {
+        modCount += offsets.length;
+        PostingsList postingList = postingsForInsert(token, docID);
+        if (postingList.lastDocID() == docID) {
+            for (int offset: offsets) {
+                postingList.addOffset(offset);
+            }
+        } else {
+            postingList.add(docID, offsets);
+        }
+    }
+
+    /**
+     *  Returns the postings list that the token is added to, after
+     *  creating it for a new term and noting a new document of the term.
+     */
+    private PostingsList postingsForInsert( String token, int docID ) {
+        if (docID != lastDocID) {
+            finishDocument();
+            lastDocID = docID;
+        }
+        int termID = terms.add(token);
+        if (termID == index.length) {
+            index = Arrays.copyOf(index, 2 * termID);
+            ttfs = Arrays.copyOf(ttfs, 2 * termID);
+            maxTfs = Arrays.copyOf(maxTfs, 2 * termID);
+        }
+        PostingsList postingList = index[termID];
         if (postingList == null) {
             postingList = new PostingsList();
-            postingList.addDocOff(docID, offset);
-            index.put(token, postingList);
+            index[termID] = postingList;
             kgIndex.insert(token);
-        } else {
-            postingList.addDocOff(docID, offset);
         }
-        
-        if (docIndex.containsKey(docID)) {
-            docIndex.get(docID).put(token, true);
-        } else {
-            HashMap<String, Boolean> tMap = new HashMap();
-            tMap.put(token, true);
-            docIndex.put(docID, tMap);
+        if (postingList.lastDocID() != docID) {
+            if (postingList.lastDocID() <= publishedDocID) {
+                // the first document of the term since the last refresh
+                addChangedTerm(termID);
+            }
+            addDocumentTerm(termID);
+        }
+        return postingList;
+    }
+
+    private void addChangedTerm(int termID) {
+        if (changedCount == changedTerms.length) {
+            changedTerms = Arrays.copyOf(changedTerms, 2 * changedCount);
+        }
+        changedTerms[changedCount++] = termID;
+    }
+
+    private void addDocumentTerm(int termID) {
+        if (docTermCount == docTerms.length) {
+            docTerms = Arrays.copyOf(docTerms, 2 * docTermCount);
+        }
+        docTerms[docTermCount++] = termID;
+    }
+
+    /**
+     *  Adds the term vector of the last document to the forward index,
+     *  and its term frequencies to the statistics of the terms. The term
+     *  frequencies are those of the last postings of the terms.
+     */
+    private void finishDocument() {
+        if (docTermCount == 0) {
+            return;
+        }
+        Arrays.sort(docTerms, 0, docTermCount);
+        if (docFreqs.length < docTermCount) {
+            docFreqs = new int[docTerms.length];
+        }
+        for (int i = 0; i < docTermCount; i++) {
+            PostingsList postingsList = index[docTerms[i]];
+            int tf = postingsList.freq(postingsList.size() - 1);
+            docFreqs[i] = tf;
+            ttfs[docTerms[i]] += tf;
+            maxTfs[docTerms[i]] = Math.max(maxTfs[docTerms[i]], tf);
         }
+        forwardIndex.add(lastDocID, docTerms, docFreqs, docTermCount);
+        docTermCount = 0;
     }
 
 
@@ -65,15 +207,89 @@ public class HashedIndex implements Index {
 	//
 	// REPLACE THE STATEMENT BELOW WITH YOUR CODE
 	//
-        PostingsList postingsList = null;
-        postingsList = index.get(token);
-	return postingsList;
+        int termID = terms.getID(token);
+	return termID < 0 ? null : index[termID];
+    }
+
+
+    /**
+     *  Returns a cursor over the postings list of the term, or null
+     *  if the term is not in the index.
+     */
+    @Override
+    public PostingsCursor getCursor( String token ) {
+        PostingsList postingsList = getPostings(token);
+        return postingsList == null ? null : new ListPostingsCursor(postingsList);
+    }
+
+
+    /**
+     *  Returns the statistics of the term from the running totals, or
+     *  null if the term is not in the index.
+     */
+    @Override
+    public TermStats getTermStats( String token ) {
+        int termID = terms.getID(token);
+        if (termID < 0) {
+            return null;
+        }
+        return new TermStats(index[termID].size(), ttfs[termID], maxTfs[termID], 0);
+    }
+
+
+    /**
+     *  The number of inserts so far.
+     */
+    @Override
+    public long getGeneration() {
+        return modCount;
+    }
+
+
+    /**
+     *  The frozen copy published by the last refresh.
+     */
+    @Override
+    public Index snapshot() {
+        return snapshot;
+    }
+
+
+    /**
+     *  Publishes a frozen copy of the index. Only the postings lists of
+     *  the changed terms are copied, as snapshots sharing their arrays:
+     *  later documents are only appended after the end of a snapshot.
+     *  The dictionary is copied when it got new terms.
+     */
+    @Override
+    public void refresh() {
+        if (snapshot == this) {
+            return;
+        }
+        TermDictionary frozenTerms = snapshot.terms;
+        if (frozenTerms.size() != terms.size()) {
+            frozenTerms = terms.copy();
+        }
+        PostingsList[] frozen = Arrays.copyOf(snapshot.index, terms.size());
+        for (int i = 0; i < changedCount; i++) {
+            int termID = changedTerms[i];
+            frozen[termID] = index[termID].snapshot();
+        }
+        changedCount = 0;
+        publishedDocID = lastDocID;
+        finishDocument();
+        snapshot = new HashedIndex(frozenTerms, frozen, Arrays.copyOf(ttfs, terms.size()),
+                                   Arrays.copyOf(maxTfs, terms.size()), forwardIndex.snapshot(), modCount);
     }
 
 
     /**
-     *  No need for cleanup in a HashedIndex.
+     *  Nothing is inserted after cleanup, so from now on searches run on
+     *  the index itself, with its k-gram index.
      */
     public void cleanup() {
+        changedCount = 0;
+        finishDocument();
+        snapshot = this;
     }
 }
@@ -7,7 +7,6 @@
 
 package ir;
 
-import java.util.HashMap;
 import java.util.Iterator;
 
 /**
@@ -17,17 +16,84 @@ import java.util.Iterator;
 public interface Index {
 
     /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+    public DocInfoMap<String> docNames = new DocInfoMap<String>(DocInfo::getName);
     
     /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+    public DocInfoMap<Integer> docLengths = new DocInfoMap<Integer>(DocInfo::getLength);
+
+    /** Mapping from document identifier to the size of the file in bytes. */
+    public DocInfoMap<Long> docFileSizes = new DocInfoMap<Long>(DocInfo::getFileSize);
+
+    /** Mapping from document identifier to the last-modified time of the file. */
+    public DocInfoMap<Long> docModifiedTimes = new DocInfoMap<Long>(DocInfo::getModifiedTime);
+
+    /**
+     *  Called by the indexer for every docID it gives out, before the
+     *  tokens of the document, also if the document has no tokens.
+     */
+    public default void addDocument( int docID ) {
+    }
 
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
 
+    /**
+     *  Inserts all occurrences of a token in a document, with the offsets
+     *  in increasing order. Tokens of the same document can be inserted
+     *  in any order.
+     */
+    public default void insert( String token, int docID, int[] offsets ) {
+        for ( int offset : offsets ) {
+            insert( token, docID, offset );
+        }
+    }
+
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /**
+     *  Returns a cursor over the postings of a term, or null if the term
+     *  is not in the index. Indexes on disk decode the postings as the
+     *  cursor moves, and only decode the positions when asked for them.
+     */
+    public default PostingsCursor getCursor( String token ) {
+        PostingsList postingsList = getPostings( token );
+        return postingsList == null ? null : new ListPostingsCursor( postingsList );
+    }
+
+    /** 
+     *  Returns the statistics of a term, or null if the term is not in
+     *  the index. Indexes on disk read them from the dictionary without
+     *  loading the postings.
+     */
+    public default TermStats getTermStats( String token ) {
+        PostingsList postingsList = getPostings( token );
+        return postingsList == null ? null : TermStats.of( postingsList );
+    }
+
+    /**
+     *  A number that changes whenever the searchable contents of the index
+     *  change, so that results computed earlier can be recognised as stale.
+     */
+    public long getGeneration();
+
+    /**
+     *  Returns a point-in-time view of the index for a search. The view
+     *  does not change while documents are indexed, so searches need no
+     *  lock. Indexes that are not changed while they are searched return
+     *  themselves.
+     */
+    public default Index snapshot() {
+        return this;
+    }
+
+    /**
+     *  Makes the documents indexed so far visible to the snapshots taken
+     *  from now on. Called by the indexer between documents.
+     */
+    public default void refresh() {
+    }
+
     /** This method is called on exit. */
     public void cleanup();
 
@@ -0,0 +1,108 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Rewrites a persistent index written in the old text format
+ * (one "term;docID--offset-offset;...;" line per term) into the
+ * binary format of PersistentHashedIndex. The index in ./index is
+ * converted in place: the documents are read from the old text docInfo
+ * file, and the postings, dictionary and a binary docInfo file are
+ * written next to the old files as the first generation of the index,
+ * with a manifest. Only once the manifest is in place does the commit
+ * remove the old files, the text docInfo file included, so a conversion
+ * that fails or crashes leaves the old index as it was.
+ *
+ * Usage: java ir.IndexConverter
+ *
+ * @author Zehua
+ */
+public class IndexConverter {
+
+    /**
+     * Parses one line of the text data file into a postings list.
+     * @param line  A line of the form "term;docID--offset-offset;..."
+     * @param index The map the postings list is put into, keyed by the term
+     */
+    static void parseTextLine(String line, HashMap<String, PostingsList> index) {
+        String[] strings = line.split(";");
+        if (strings.length == 0 || strings[0].isEmpty()) {
+            return;
+        }
+        PostingsList postingsList = new PostingsList();
+        for (int i = 1; i < strings.length; i++) {
+            //extract docID and offsets from the file
+            String[] entry = strings[i].split("-");
+            int[] offsets = new int[Math.max(0, entry.length - 2)];
+            for (int j = 2; j < entry.length; j++) {
+                offsets[j - 2] = Integer.parseInt(entry[j]);
+            }
+            postingsList.add(Integer.parseInt(entry[0]), offsets);
+        }
+        index.put(strings[0], postingsList);
+    }
+
+    /**
+     * Returns true if the file already starts with the binary format header.
+     */
+    private static boolean isBinary(File dataFile) throws IOException {
+        if (dataFile.length() < PersistentHashedIndex.DATA_HEADER_SIZE) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(dataFile))) {
+            return in.readInt() == PersistentHashedIndex.FORMAT_MAGIC;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(PersistentHashedIndex.INDEXDIR);
+        File dataFile = new File(dir, PersistentHashedIndex.DATA_FNAME);
+        if (!dataFile.exists()) {
+            System.err.println("No data file found in " + dir);
+            return;
+        }
+        if (isBinary(dataFile)) {
+            System.err.println("The index in " + dir + " is already in the binary format");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long textSize = dataFile.length();
+        HashMap<String, PostingsList> index = new HashMap<String, PostingsList>();
+        // The old index was written with RandomAccessFile.writeBytes, which
+        // keeps only the low byte of every char, so it is read back as Latin-1
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(dataFile), StandardCharsets.ISO_8859_1), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseTextLine(line, index);
+            }
+        }
+        System.err.println("Read " + index.size() + " terms from the text index");
+
+        PersistentHashedIndex converted = new PersistentHashedIndex(PersistentHashedIndex.INDEXDIR, false);
+        converted.index = index;
+        converted.writeIndex();
+        if (converted.getGeneration() == 0) {
+            System.err.println("The conversion failed, the old index in " + dir + " is kept");
+            return;
+        }
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        System.err.println(String.format("Converted %d bytes of text into %d bytes in %.1f seconds",
+                                         textSize, converted.file(PersistentHashedIndex.DATA_FNAME).length() +
+                                         converted.file(PersistentHashedIndex.POSITIONS_FNAME).length(),
+                                         elapsedTime / 1000.0));
+    }
+}
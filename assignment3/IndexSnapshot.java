@@ -0,0 +1,156 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A point-in-time view of a SegmentedIndex: its segment list, the
+ * documents not written to a segment yet and the deleted documents as
+ * they were when the view was published. None of them is changed
+ * afterwards, and segments are immutable, so any number of searches can
+ * run on a snapshot without locking while documents are indexed and
+ * segments are flushed and merged. Segments merged away keep their
+ * mappings, so a search holding an older snapshot can still finish.
+ *
+ * @author Zehua
+ */
+public class IndexSnapshot implements Index {
+
+    /** A snapshot without documents. */
+    static final IndexSnapshot EMPTY = new IndexSnapshot(Collections.<PersistentHashedIndex>emptyList(),
+                                                         Collections.<String,PostingsList>emptyMap(), new BitSet(), 0);
+
+    /** The segments in docID order. */
+    final List<PersistentHashedIndex> segments;
+
+    /**
+     * Frozen copies of the postings lists of the main-memory map, for the
+     * documents after the last segment.
+     */
+    final Map<String,PostingsList> buffer;
+
+    /** The documents deleted as of this snapshot. */
+    final BitSet deletedDocs;
+
+    private final long generation;
+
+
+    IndexSnapshot(List<PersistentHashedIndex> segments, Map<String,PostingsList> buffer,
+                  BitSet deletedDocs, long generation) {
+        this.segments = segments;
+        this.buffer = buffer;
+        this.deletedDocs = deletedDocs;
+        this.generation = generation;
+    }
+
+    /**
+     * Returns false if the document was deleted when the snapshot was taken.
+     */
+    public boolean isLive(int docID) {
+        return !deletedDocs.get(docID);
+    }
+
+    /** Number of deleted documents. */
+    public int getDeletedCount() {
+        return deletedDocs.cardinality();
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Decodes the postings of the term from all segments into one list,
+     * followed by the postings in the main-memory map. The segments hold
+     * increasing docID ranges, so their lists follow each other. Searches
+     * use getCursor, which decodes as it goes.
+     */
+    @Override
+    public PostingsList getPostings( String token ) {
+        PostingsList postingsList = null;
+        for (PersistentHashedIndex segment: segments) {
+            ByteBuffer record = segment.findRecord(token);
+            if (record != null) {
+                postingsList = PostingsCodec.decodePostings(record.duplicate(), segment.readPositions(record),
+                                                            segment.docBase, postingsList);
+            }
+        }
+        PostingsList buffered = buffer.get(token);
+        if (buffered != null) {
+            if (postingsList == null) {
+                postingsList = new PostingsList();
+            }
+            for (int i = 0; i < buffered.size(); i++) {
+                postingsList.add(buffered, i);
+            }
+        }
+        return postingsList;
+    }
+
+    /**
+     * Returns one cursor over the postings of the term in all segments
+     * and the main-memory map, or null if none of them has the term.
+     */
+    @Override
+    public PostingsCursor getCursor( String token ) {
+        List<PostingsCursor> parts = new ArrayList<PostingsCursor>();
+        for (PersistentHashedIndex segment: segments) {
+            PostingsCursor cursor = segment.getCursor(token);
+            if (cursor != null) {
+                parts.add(cursor);
+            }
+        }
+        PostingsList buffered = buffer.get(token);
+        if (buffered != null) {
+            parts.add(new ListPostingsCursor(buffered));
+        }
+        if (parts.isEmpty()) {
+            return null;
+        }
+        return parts.size() == 1 ? parts.get(0) : new ChainedPostingsCursor(parts.toArray(new PostingsCursor[parts.size()]));
+    }
+
+    /**
+     * Adds up the statistics of the term in all segments and the
+     * main-memory map.
+     */
+    @Override
+    public TermStats getTermStats( String token ) {
+        PostingsList buffered = buffer.get(token);
+        TermStats stats = buffered == null ? null : TermStats.of(buffered);
+        for (PersistentHashedIndex segment: segments) {
+            TermStats part = segment.getTermStats(token);
+            if (part == null) {
+                continue;
+            }
+            if (stats == null) {
+                stats = part;
+            } else {
+                stats.add(part);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Snapshots are read-only.
+     */
+    @Override
+    public void insert( String token, int docID, int offset ) {
+        throw new UnsupportedOperationException("an index snapshot is read-only");
+    }
+
+    @Override
+    public void cleanup() {
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Warms a persistent index up after it is opened. Right after a restart
+ * the dictionary and the postings are only on disk, and the first searches
+ * wait for page faults. The warmer loads the dictionary, the term
+ * statistics and the docInfo files, reads the postings of the terms found
+ * in the most documents into the page cache, and, if there is a query log,
+ * decodes the postings of the terms searched most in earlier runs, which
+ * also puts them into the postings cache.
+ *
+ * @author Zehua
+ */
+public class IndexWarmer {
+
+    private final Index index;
+
+    /** The number of terms of every segment, and of the query log, to warm up. */
+    private final int topTerms;
+
+    /** The queries of earlier runs, or null. */
+    private final QueryLog queryLog;
+
+    public IndexWarmer(Index index, int topTerms, QueryLog queryLog) {
+        this.index = index;
+        this.topTerms = topTerms;
+        this.queryLog = queryLog;
+    }
+
+    /**
+     * The persistent parts of the index, none for an index in main memory.
+     */
+    private List<PersistentHashedIndex> segmentsOf(Index index) {
+        Index snapshot = index.snapshot();
+        if (snapshot instanceof PersistentHashedIndex) {
+            return Collections.singletonList((PersistentHashedIndex)snapshot);
+        }
+        if (snapshot instanceof IndexSnapshot) {
+            return ((IndexSnapshot)snapshot).segments;
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Walks through the postings of a term, with their positions.
+     *
+     * @return The number of documents of the term
+     */
+    private int readPostings(String term) {
+        PostingsCursor cursor = index.getCursor(term);
+        if (cursor == null) {
+            return 0;
+        }
+        int docs = 0;
+        while (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            cursor.positions();
+            docs++;
+        }
+        return docs;
+    }
+
+    /**
+     * Warms the index up and reports what was loaded and how long it took.
+     *
+     * @return The time the warm-up took in milliseconds
+     */
+    public long warmUp() {
+        long startTime = System.currentTimeMillis();
+        long bytes = 0;
+        for (PersistentHashedIndex segment: segmentsOf(index)) {
+            bytes += segment.warmUp(topTerms);
+        }
+        List<String> logged = queryLog == null ? Collections.<String>emptyList()
+                                               : queryLog.mostFrequentTerms(topTerms);
+        int found = 0;
+        for (String term: logged) {
+            if (readPostings(term) > 0) {
+                found++;
+            }
+        }
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        System.err.println(String.format("Warm-up loaded %.1f MB and %d of %d logged terms in %.1f seconds",
+                                         bytes / 1048576.0, found, logged.size(), elapsedTime / 1000.0));
+        if (!logged.isEmpty()) {
+            // a first search after the warm-up, to see that it no longer waits for the disk
+            long probeStart = System.nanoTime();
+            readPostings(logged.get(0));
+            System.err.println(String.format("First search for \"%s\" after the warm-up took %.2f ms",
+                                             logged.get(0), (System.nanoTime() - probeStart) / 1e6));
+        }
+        return elapsedTime;
+    }
+}
@@ -9,6 +9,7 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.nio.charset.*;
 import org.apache.pdfbox.cos.COSDocument;
 import org.apache.pdfbox.pdfparser.*;
@@ -30,6 +31,27 @@ public class Indexer {
      /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /** 
+     *  In incremental mode, the index whose segments are kept. Only new
+     *  and changed files are indexed, into a new segment.
+     */
+    SegmentedIndex incrementalIndex = null;
+
+    /** The docIDs of the live documents already in the index, by path. */
+    private HashMap<String,Integer> indexedFiles = new HashMap<String,Integer>();
+
+    /** The already indexed documents whose files were found again. */
+    private HashSet<Integer> foundDocs = new HashSet<Integer>();
+
+    private int unchangedFiles = 0;
+    private int changedFiles = 0;
+
+    /** How often the index is refreshed in milliseconds, 0 for never. */
+    private long refreshMillis = 0;
+
+    /** The time of the last refresh. */
+    private long lastRefresh = System.currentTimeMillis();
+
 
     /* ----------------------------------------------- */
 
@@ -41,8 +63,98 @@ public class Indexer {
     }
 
 
-    /** Generates a new document identifier as an integer. */
+    /**
+     *  Switches to incremental indexing: new docIDs follow the documents
+     *  already in the index, and unchanged files are skipped.
+     */
+    public void setIncremental( SegmentedIndex index ) {
+	incrementalIndex = index;
+	lastDocID = index.segmentsEnd();
+	for ( Map.Entry<Integer,String> entry : Index.docNames.entrySet() ) {
+	    int docID = entry.getKey();
+	    if ( index.isLive( docID )) {
+		Integer previous = indexedFiles.get( entry.getValue() );
+		if ( previous == null || previous < docID ) {
+		    indexedFiles.put( entry.getValue(), docID );
+		}
+	    }
+	}
+    }
+
+    /**
+     *  Makes the index publish the documents indexed so far to searches
+     *  every refreshMillis milliseconds while files are processed.
+     */
+    public void setRefreshInterval( long refreshMillis ) {
+	this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     *  Refreshes the index if the refresh interval has passed. Called
+     *  between documents, when no document is half indexed.
+     */
+    private void maybeRefresh() {
+	if ( refreshMillis > 0 && System.currentTimeMillis() - lastRefresh >= refreshMillis ) {
+	    index.refresh();
+	    lastRefresh = System.currentTimeMillis();
+	}
+    }
+
+    /**
+     *  In incremental mode, returns true if the file is new or has changed
+     *  since it was indexed. The old document of a changed file is deleted.
+     */
+    private boolean needsIndexing( File f ) {
+	Integer docID = indexedFiles.get( f.getPath() );
+	if ( docID == null ) {
+	    return true;
+	}
+	foundDocs.add( docID );
+	Long size = Index.docFileSizes.get( docID );
+	Long modified = Index.docModifiedTimes.get( docID );
+	if ( size != null && size == f.length() && modified != null && modified == f.lastModified() ) {
+	    unchangedFiles++;
+	    return false;
+	}
+	incrementalIndex.deleteDocument( docID );
+	changedFiles++;
+	return true;
+    }
+
+    /**
+     *  In incremental mode, deletes the documents whose files were not
+     *  found by processFiles. Called once all directories are processed.
+     */
+    public void deleteMissingFiles() {
+	if ( incrementalIndex == null ) {
+	    return;
+	}
+	int missing = 0;
+	for ( int docID : indexedFiles.values() ) {
+	    if ( !foundDocs.contains( docID )) {
+		incrementalIndex.deleteDocument( docID );
+		missing++;
+	    }
+	}
+	System.err.println( "Incremental indexing: " + unchangedFiles + " files unchanged, " +
+			    changedFiles + " changed, " + missing + " deleted" );
+    }
+
+    /**
+     *  Generates a new document identifier as an integer. Without
+     *  setIncremental the files are indexed from scratch, so the segments
+     *  an earlier run left in a segmented index are removed before the
+     *  first docID is given out.
+     */
     private int generateDocID() {
+	if ( lastDocID == 0 && incrementalIndex == null && index instanceof SegmentedIndex ) {
+	    SegmentedIndex segmented = (SegmentedIndex)index;
+	    if ( segmented.segmentsEnd() > 0 ) {
+		System.err.println( "Indexing from scratch: removing the " + segmented.segments.size() +
+				    " segments of the earlier run" );
+		segmented.deleteSegments();
+	    }
+	}
 	return lastDocID++;
     }
 
@@ -62,32 +174,18 @@ public class Indexer {
 		    }
 		}
 	    } else {
+		if ( incrementalIndex != null && !needsIndexing( f )) {
+		    return;
+		}
 		// First register the document and get a docID
 		int docID = generateDocID();
 		if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+		index.addDocument( docID );
 		index.docNames.put( docID, f.getPath() );
+		Index.docFileSizes.put( docID, f.length() );
+		Index.docModifiedTimes.put( docID, f.lastModified() );
 		try {
-		    //  Read the first few bytes of the file to see if it is 
-		    // likely to be a PDF 
-		    Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-		    char[] buf = new char[4];
-		    reader.read( buf, 0, 4 );
-		    reader.close();
-		    if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
-			// We assume this is a PDF file
-			try {
-			    String contents = extractPDFContents( f );
-			    reader = new StringReader( contents );
-			}
-			catch ( IOException e ) {
-			    // Perhaps it wasn't a PDF file after all
-			    reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-			}
-		    }
-		    else {
-			// We hope this is ordinary text
-			reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-		    }
+		    Reader reader = openDocument( f );
 		    Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
 		    int offset = 0;
 		    while ( tok.hasMoreTokens() ) {
@@ -100,11 +198,221 @@ public class Indexer {
 		catch ( IOException e ) {
 		    System.err.println( "Warning: IOException during indexing." );
 		}
+		maybeRefresh();
 	    }
 	}
     }
 
     
+    /**
+     *  Opens a file for tokenizing, with the text extracted if it is a PDF file.
+     */
+    private Reader openDocument( File f ) throws IOException {
+	//  Read the first few bytes of the file to see if it is 
+	// likely to be a PDF 
+	Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+	char[] buf = new char[4];
+	reader.read( buf, 0, 4 );
+	reader.close();
+	if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
+	    // We assume this is a PDF file
+	    try {
+		String contents = extractPDFContents( f );
+		return new StringReader( contents );
+	    }
+	    catch ( IOException e ) {
+		// Perhaps it wasn't a PDF file after all
+		return new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+	    }
+	}
+	// We hope this is ordinary text
+	return new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  A file to be indexed, and its tokens once a worker has read them:
+     *  the distinct tokens in order of first occurrence, with the offsets
+     *  of each of them.
+     */
+    private static class Document {
+	final int docID;
+	final File file;
+	String[] tokens = new String[64];
+	int[][] offsets = new int[64][];
+	int[] counts = new int[64];
+	int tokenCount = 0;
+	/** The number of tokens in the document, -1 if it could not be read. */
+	int length = -1;
+
+	Document( int docID, File file ) {
+	    this.docID = docID;
+	    this.file = file;
+	}
+
+	void add( String token, int offset, HashMap<String,Integer> slots ) {
+	    Integer slot = slots.get( token );
+	    if ( slot == null ) {
+		slot = tokenCount++;
+		slots.put( token, slot );
+		if ( slot == tokens.length ) {
+		    tokens = Arrays.copyOf( tokens, 2 * slot );
+		    offsets = Arrays.copyOf( offsets, 2 * slot );
+		    counts = Arrays.copyOf( counts, 2 * slot );
+		}
+		tokens[slot] = token;
+		offsets[slot] = new int[4];
+	    }
+	    int[] o = offsets[slot];
+	    if ( counts[slot] == o.length ) {
+		o = offsets[slot] = Arrays.copyOf( o, 2 * o.length );
+	    }
+	    o[counts[slot]++] = offset;
+	}
+    }
+
+    /** The end of the files found by the walker. */
+    private static final Future<Document> END_OF_FILES = CompletableFuture.completedFuture( null );
+
+    /** The number of threads reading and tokenizing files in processFilesInParallel. */
+    private int threads = 1;
+
+    /**
+     *  Sets the number of threads that read and tokenize the files in
+     *  processFilesInParallel.
+     */
+    public void setThreads( int threads ) {
+	this.threads = Math.max( 1, threads );
+    }
+
+    /**
+     *  Indexes all files under the given files and directories, like
+     *  processFiles, with the files read and tokenized on several threads.
+     *
+     *  A walker thread lists the directories, gives the files their docIDs
+     *  and hands them to the workers, which group the tokens of a file by
+     *  term. The documents come back through a bounded queue in docID
+     *  order, and are inserted on the calling thread, a whole term at a
+     *  time: the indexes expect the documents in increasing docID order.
+     *  The queue holds at most a few documents per worker, so the walker
+     *  waits when the workers, or the inserts, fall behind.
+     */
+    public void processFilesInParallel( List<File> files ) {
+	ExecutorService workers = Executors.newFixedThreadPool( threads );
+	BlockingQueue<Future<Document>> queue = new ArrayBlockingQueue<Future<Document>>( 4 * threads );
+	Thread walker = new Thread( () -> {
+		boolean cancelled = false;
+		try {
+		    for ( File f : files ) {
+			walkFiles( f, workers, queue );
+		    }
+		}
+		catch ( InterruptedException e ) {
+		    // the indexing was cancelled, nobody takes from the queue any more
+		    cancelled = true;
+		}
+		finally {
+		    // also after an unexpected exception, so the inserts do not wait forever
+		    try {
+			if ( !cancelled ) {
+			    queue.put( END_OF_FILES );
+			}
+		    }
+		    catch ( InterruptedException e ) {
+			// cancelled while waiting for room in the queue
+		    }
+		}
+	    }, "walker" );
+	walker.start();
+	try {
+	    for ( Future<Document> next = queue.take(); next != END_OF_FILES; next = queue.take() ) {
+		insertDocument( next.get() );
+		maybeRefresh();
+	    }
+	    walker.join();
+	}
+	catch ( InterruptedException e ) {
+	    Thread.currentThread().interrupt();
+	}
+	catch ( ExecutionException e ) {
+	    throw new RuntimeException( e.getCause() );
+	}
+	finally {
+	    // also when an insert throws, so the walker does not wait for room
+	    // in the queue forever and the JVM can exit; a no-op once it is done
+	    walker.interrupt();
+	    workers.shutdownNow();
+	}
+    }
+
+    /**
+     *  Hands the files under f to the workers, in the order processFiles
+     *  would index them. Runs on the walker thread.
+     */
+    private void walkFiles( File f, ExecutorService workers, BlockingQueue<Future<Document>> queue ) throws InterruptedException {
+	// do not try to index fs that cannot be read
+	if ( f.canRead() ) {
+	    if ( f.isDirectory() ) {
+		String[] fs = f.list();
+		// an IO error could occur
+		if ( fs != null ) {
+		    for ( int i=0; i<fs.length; i++ ) {
+			walkFiles( new File( f, fs[i] ), workers, queue );
+		    }
+		}
+	    } else {
+		if ( incrementalIndex != null && !needsIndexing( f )) {
+		    return;
+		}
+		Document doc = new Document( generateDocID(), f );
+		queue.put( workers.submit( () -> readDocument( doc )));
+	    }
+	}
+    }
+
+    /**
+     *  Reads and tokenizes a document. Runs on a worker thread.
+     */
+    private Document readDocument( Document doc ) {
+	HashMap<String,Integer> slots = new HashMap<String,Integer>();
+	try {
+	    Reader reader = openDocument( doc.file );
+	    Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
+	    int offset = 0;
+	    while ( tok.hasMoreTokens() ) {
+		doc.add( tok.nextToken(), offset++, slots );
+	    }
+	    reader.close();
+	    doc.length = offset;
+	}
+	catch ( IOException e ) {
+	    System.err.println( "Warning: IOException during indexing." );
+	}
+	return doc;
+    }
+
+    /**
+     *  Registers a document read by a worker and inserts its tokens.
+     */
+    private void insertDocument( Document doc ) {
+	int docID = doc.docID;
+	if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+	index.addDocument( docID );
+	Index.docNames.put( docID, doc.file.getPath() );
+	Index.docFileSizes.put( docID, doc.file.length() );
+	Index.docModifiedTimes.put( docID, doc.file.lastModified() );
+	for ( int i=0; i<doc.tokenCount; i++ ) {
+	    index.insert( doc.tokens[i], docID, Arrays.copyOf( doc.offsets[i], doc.counts[i] ));
+	}
+	if ( doc.length >= 0 ) {
+	    Index.docLengths.put( docID, doc.length );
+	}
+    }
+
+
     /* ----------------------------------------------- */
 
 
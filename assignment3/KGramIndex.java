@@ -14,11 +14,8 @@ import java.nio.charset.StandardCharsets;
 
 public class KGramIndex {
 
-    /** Mapping from term ids to actual term strings */
-    HashMap<Integer,String> id2term = new HashMap<Integer,String>();
-
-    /** Mapping from term strings to term ids */
-    HashMap<String,Integer> term2id = new HashMap<String,Integer>();
+    /** Mapping between term strings and term ids, may be shared with the inverted index */
+    final TermDictionary terms;
 
     /** Index from k-grams to list of term ids that contain the k-gram */
     HashMap<String,List<KGramPostingsEntry>> index = new HashMap<String,List<KGramPostingsEntry>>();
@@ -30,6 +27,11 @@ public class KGramIndex {
     int K = 3;
 
     public KGramIndex(int k) {
+        this(k, new TermDictionary());
+    }
+
+    public KGramIndex(int k, TermDictionary terms) {
+        this.terms = terms;
         K = k;
         if (k <= 0) {
             System.err.println("The K-gram index can't be constructed for a negative K value");
@@ -37,11 +39,6 @@ public class KGramIndex {
         }
     }
 
-    /** Generate the ID for an unknown term */
-    private int generateTermID() {
-        return ++lastTermID;
-    }
-
     public int getK() {
         return K;
     }
@@ -111,16 +108,14 @@ public class KGramIndex {
         // YOUR CODE HERE
         //
         
-        // The token may appear before
-        if (term2id.containsKey(token)) {
+        // The token may appear before. Terms get their IDs in increasing
+        // order, and are inserted here when they are new, so the IDs up to
+        // lastTermID have been processed
+        int id = terms.add(token);
+        if (id <= lastTermID) {
             return;
         }
-        
-        // Build the mapping from tokenID to token and the mapping from toekn to tokenID
-        // each time we invoke generateTermID(), the id will plus one
-        int id = generateTermID();
-        id2term.put(id, token);
-        term2id.put(token, id);
+        lastTermID = id;
         
         KGramPostingsEntry newEntry = new KGramPostingsEntry(id);
         String donoted_token = "^".concat(token).concat("$");
@@ -138,8 +133,9 @@ public class KGramIndex {
             
             if (entrys != null) {
                 // If this gram is already in the k-gram index
-                // a k-gram may occur more than once in a token
-                if (!entrys.contains(newEntry)) {
+                // a k-gram may occur more than once in a token, and then
+                // the entry of the token is the last one
+                if (entrys.get(entrys.size() - 1) != newEntry) {
                     entrys.add(newEntry);
                 }
             } else {
@@ -164,12 +160,13 @@ public class KGramIndex {
 
     /** Get id of a term */
     public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+        int id = terms.getID(term);
+        return id < 0 ? null : id;
     }
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        return id == null || id < 0 || id >= terms.size() ? null : terms.getTerm(id);
     }
 
     private static HashMap<String,String> decodeArgs( String[] args ) {
@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+/**
+ * A cursor over a postings list in main memory. advance() gallops
+ * forward from the current entry and finishes with a binary search, so
+ * jumping over a long stretch of the list costs a logarithmic number of
+ * comparisons.
+ *
+ * The cursor runs over the docID and frequency arrays of the list. Other
+ * decoded lists, like CachedPostings, use it over their own arrays and
+ * only supply the positions.
+ *
+ * @author Zehua
+ */
+public class ListPostingsCursor implements PostingsCursor {
+
+    private final PostingsList postingsList;
+    private final int[] docIDs;
+    private final int[] freqs;
+    private final int size;
+
+    /** Index of the current entry in the list. */
+    private int index = -1;
+
+    private int docID = -1;
+
+
+    public ListPostingsCursor(PostingsList postingsList) {
+        this.postingsList = postingsList;
+        this.size = postingsList.size();
+        this.docIDs = postingsList.docIDArray();
+        this.freqs = postingsList.freqArray();
+    }
+
+    /**
+     * A cursor over the first size entries of the arrays. Subclasses
+     * supply the positions.
+     */
+    ListPostingsCursor(int[] docIDs, int[] freqs, int size) {
+        this.postingsList = null;
+        this.docIDs = docIDs;
+        this.freqs = freqs;
+        this.size = size;
+    }
+
+    /** Index of the current entry in the list. */
+    int index() {
+        return index;
+    }
+
+    @Override
+    public int docID() {
+        return docID;
+    }
+
+    @Override
+    public int nextDoc() {
+        return moveTo(index + 1);
+    }
+
+    @Override
+    public int advance(int target) {
+        if (docID >= target) {
+            return docID;
+        }
+        // find a range (low, high] holding the first docID >= target
+        int low = index;
+        int step = 1;
+        int high = index + step;
+        while (high < size && docIDs[high] < target) {
+            low = high;
+            step <<= 1;
+            high = index + step;
+        }
+        high = Math.min(high, size);
+        while (low + 1 < high) {
+            int mid = (low + high) >>> 1;
+            if (docIDs[mid] < target) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return moveTo(high);
+    }
+
+    private int moveTo(int i) {
+        index = Math.min(i, size);
+        return docID = index < size ? docIDs[index] : NO_MORE_DOCS;
+    }
+
+    @Override
+    public int freq() {
+        return index < size ? freqs[index] : 0;
+    }
+
+    @Override
+    public int[] positions() {
+        return postingsList.positions(index);
+    }
+
+    @Override
+    public int cost() {
+        return size;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only memory mapping of a whole file.
+ *
+ * A single MappedByteBuffer can not be larger than 2 GB, so the file is
+ * mapped in chunks of CHUNK_SIZE bytes. All reads take an absolute
+ * position and never move the position of the shared buffers, so any
+ * number of threads can read from the same MappedFile without locking.
+ *
+ * @author Zehua
+ */
+public class MappedFile {
+
+    /** Every chunk but the last one has exactly this many bytes (1 GB). */
+    static final int CHUNK_BITS = 30;
+    static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** Size of a page of the page cache. */
+    static final int PAGE_SIZE = 4096;
+
+    private final MappedByteBuffer[] chunks;
+
+    private final long length;
+
+    public MappedFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            length = channel.size();
+            int numOfChunks = (int)((length + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+            chunks = new MappedByteBuffer[numOfChunks];
+            for (int i = 0; i < numOfChunks; i++) {
+                long start = (long)i << CHUNK_BITS;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, length - start));
+            }
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Loads the whole file into physical memory (see MappedByteBuffer.load),
+     * so that later reads do not wait for the disk.
+     */
+    public void load() {
+        for (MappedByteBuffer chunk: chunks) {
+            chunk.load();
+        }
+    }
+
+    /**
+     * Reads one byte of every page of a part of the file, so that the
+     * part is in the page cache afterwards.
+     *
+     * @return A sum of the bytes read, only there so the reads are not optimised away
+     */
+    public int load(long pos, long size) {
+        long end = Math.min(length, pos + size);
+        int sum = 0;
+        for (long p = pos; p < end; p += PAGE_SIZE) {
+            sum += get(p);
+        }
+        return sum;
+    }
+
+    public byte get(long pos) {
+        return chunks[(int)(pos >>> CHUNK_BITS)].get((int)(pos & CHUNK_MASK));
+    }
+
+    public int getInt(long pos) {
+        int chunk = (int)(pos >>> CHUNK_BITS);
+        int offset = (int)(pos & CHUNK_MASK);
+        if (offset + 4 <= chunks[chunk].limit()) {
+            return chunks[chunk].getInt(offset);
+        }
+        return slice(pos, 4).getInt();
+    }
+
+    public long getLong(long pos) {
+        int chunk = (int)(pos >>> CHUNK_BITS);
+        int offset = (int)(pos & CHUNK_MASK);
+        if (offset + 8 <= chunks[chunk].limit()) {
+            return chunks[chunk].getLong(offset);
+        }
+        return slice(pos, 8).getLong();
+    }
+
+    /**
+     * Returns a buffer over size bytes starting at pos. The buffer has its
+     * own position and limit, so the caller may read it with relative gets.
+     * It is a view of the mapping unless it crosses a chunk boundary, in
+     * which case the bytes are copied.
+     */
+    public ByteBuffer slice(long pos, int size) {
+        if (pos < 0 || size < 0 || pos + size > length) {
+            throw new IndexOutOfBoundsException("Read of " + size + " bytes at " + pos + " in a file of " + length + " bytes");
+        }
+        int chunk = (int)(pos >>> CHUNK_BITS);
+        int offset = (int)(pos & CHUNK_MASK);
+        if (offset + size <= chunks[chunk].limit()) {
+            ByteBuffer view = chunks[chunk].duplicate();
+            view.position(offset);
+            view.limit(offset + size);
+            return view.slice();
+        }
+        byte[] copy = new byte[size];
+        for (int i = 0; i < size; i++) {
+            copy[i] = get(pos + i);
+        }
+        return ByteBuffer.wrap(copy);
+    }
+}
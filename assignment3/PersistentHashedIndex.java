@@ -9,7 +9,13 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
 import java.math.*;
 
 
@@ -23,6 +29,15 @@ import java.math.*;
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
  *   to disk.
+ *
+ *   The offsets of the terms are kept in a positions file of their own,
+ *   which only phrase searches read.
+ *
+ *   Every commit writes a new generation of the files (data.N,
+ *   positions.N, dictionary.N, docInfo.N) and then a manifest listing their lengths 
+ *   and CRC32C checksums, which atomically replaces the manifest of the
+ *   previous commit. A crash during a commit leaves the previous commit 
+ *   untouched, and a damaged file is found when the index is opened.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -35,14 +50,98 @@ public class PersistentHashedIndex implements Index {
     /** The dictionary file name */
     public static final String DATA_FNAME = "data";
 
+    /** The positions file name */
+    public static final String POSITIONS_FNAME = "positions";
+
     /** The terms file name */
     public static final String TERMS_FNAME = "terms";
 
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
-    /** The dictionary hash table on disk can fit this many entries. */
-    public static final long TABLESIZE = 611953L;  // 50,000th prime number
+    /** The manifest file name */
+    public static final String MANIFEST_FNAME = "manifest";
+
+    /** Magic number at the start of the manifest ("KTHM"). */
+    public static final int MANIFEST_MAGIC = 0x4B54484D;
+
+    /** Version of the manifest format. */
+    public static final int MANIFEST_VERSION = 1;
+
+    /** The files of one commit, as listed in the manifest. */
+    static final String[] COMMIT_FILES = { DATA_FNAME, POSITIONS_FNAME, DICTIONARY_FNAME, DOCINFO_FNAME };
+
+    /** Size of the buffer the checksums are computed through. */
+    static final int CHECKSUM_BUFFER_SIZE = 1 << 20;
+
+    /** Whether the checksums in the manifest are checked when an index is opened. */
+    static boolean verifyOnOpen = true;
+
+    /** Magic number at the start of a binary data file ("KTHP"). */
+    public static final int FORMAT_MAGIC = 0x4B544850;
+
+    /** Version of the binary index format, see PostingsCodec. */
+    public static final int FORMAT_VERSION = 8;
+
+    /** Size of the header (magic number and version) of the data and the positions file. */
+    public static final int DATA_HEADER_SIZE = 8;
+
+    /**
+     *  Size of one dictionary entry: the fingerprint of the term, the
+     *  pointer to its record in the data file, the length of the record,
+     *  the document frequency, the total term frequency and the highest 
+     *  term frequency of the term, and four reserved bytes.
+     */
+    public static final int ENTRY_SIZE = 8 + 8 + 4 + 4 + 8 + 4 + 4;
+
+    /**
+     *  Size of the dictionary header: magic number, version, table size,
+     *  number of terms, hash seed, load factor, longest probe length,
+     *  docID base and number of documents. The rest of the header is 
+     *  reserved and left zero.
+     */
+    public static final int DICTIONARY_HEADER_SIZE = 64;
+
+    /** Fraction of the dictionary slots that are filled at commit time. */
+    public static final double DEFAULT_LOAD_FACTOR = 0.75;
+
+    /** The load factor used for the next commit. */
+    double loadFactor = DEFAULT_LOAD_FACTOR;
+
+    /** The dictionary hash table on disk has this many entries. */
+    long tableSize = 0;
+
+    /** Number of terms in the dictionary. */
+    long termCount = 0;
+
+    /** The seed mixed into the hash of the fingerprints. */
+    int seed = 131;
+
+    /** No term is further than this many slots from its home slot. */
+    int maxProbeLength = 0;
+
+    /** The directory holding the files of this index. */
+    final String directory;
+
+    /**
+     *  The generation of the last commit. Generation 0 is an index without
+     *  a manifest, whose files have no generation suffix.
+     */
+    volatile long generation = 0;
+
+    /** Set when the manifest or a file of the last commit is damaged. */
+    boolean damaged = false;
+
+    /** The mapped docInfo file, once the index has one. */
+    DocInfo docInfo;
+
+    /**
+     *  The documents of this index are docBase .. docBase + docCount - 1.
+     *  Postings are stored relative to docBase. A negative docCount when
+     *  writing means all the documents in docNames.
+     */
+    int docBase = 0;
+    int docCount = -1;
 
     /** The dictionary hash table is stored in this file. */
     RandomAccessFile dictionaryFile;
@@ -50,14 +149,32 @@ public class PersistentHashedIndex implements Index {
     /** The data (the PostingsLists) are stored in this file. */
     RandomAccessFile dataFile;
 
+    /** The offsets of the terms are stored in this file. */
+    RandomAccessFile positionsFile;
+
+    /** Writes the positions file of a commit, from startDataFile on. */
+    BufferedChannelWriter positionsWriter;
+
+    /**
+     *  Read-only mappings of the dictionary, data and positions file. When they
+     *  are set, lookups only do absolute reads on the mappings, so any
+     *  number of threads can search the index at the same time.
+     */
+    MappedFile dictionaryMap;
+    MappedFile dataMap;
+    MappedFile positionsMap;
+
+    /**
+     *  The decoded postings of the terms searched most. Set to the cache
+     *  of the SegmentedIndex for a segment, so all segments share one bound.
+     */
+    PostingsCache postingsCache = new PostingsCache();
+
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
-    /** The cache as a main-memory hash map. */
+    /** The postings not written to disk yet, as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
-    
-    //
-    short[] hashTableFlags = new short[(int)TABLESIZE];
 
 
     // ===================================================================
@@ -70,11 +187,37 @@ public class PersistentHashedIndex implements Index {
 	//  YOUR CODE HERE
 	//
         private String key;
+        private long fingerprint;
         private long address;
+        private int size;
+        private int df;
+        private long ttf;
+        private int maxTf;
 
-        public Entry(String key, long address) {
+        /** The record of the term after the term itself, once it is read. */
+        private ByteBuffer record;
+
+        public Entry(String key, long address, int size, TermStats stats) {
             this.key = key;
+            this.fingerprint = Hash.fingerprint(key);
+            this.address = address;
+            this.size = size;
+            this.df = stats.df;
+            this.ttf = stats.ttf;
+            this.maxTf = stats.maxTf;
+        }
+
+        private Entry(long fingerprint, long address, int size, int df, long ttf, int maxTf) {
+            this.fingerprint = fingerprint;
             this.address = address;
+            this.size = size;
+            this.df = df;
+            this.ttf = ttf;
+            this.maxTf = maxTf;
+        }
+
+        public TermStats getStats() {
+            return new TermStats(df, ttf, maxTf, size);
         }
     }
 
@@ -87,9 +230,41 @@ public class PersistentHashedIndex implements Index {
      *  If these files don't exist, they will be created. 
      */
     public PersistentHashedIndex() {
+        this( INDEXDIR );
+    }
+
+    /**
+     *  Opens (or creates) the index stored in the given directory.
+     */
+    public PersistentHashedIndex( String directory ) {
+        this( directory, true );
+    }
+
+    /**
+     *  Opens the index stored in the given directory. Without openFiles
+     *  the dictionary, data and positions files are left alone and only
+     *  the docInfo file is read, for an index whose files are rewritten
+     *  into a new generation from another format.
+     */
+    PersistentHashedIndex( String directory, boolean openFiles ) {
+        this.directory = directory;
+        try {
+            readManifest();
+        }
+        catch ( IOException e ) {
+            System.err.println( "The index in " + directory + " is damaged and has to be rebuilt: " +
+                                e.getMessage() );
+            damaged = true;
+            return;
+        }
         try {
-            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
+            if ( openFiles && ( generation > 0 || file( DATA_FNAME ).exists() )) {
+                dictionaryFile = new RandomAccessFile( file( DICTIONARY_FNAME ), "rw" );
+                dataFile = new RandomAccessFile( file( DATA_FNAME ), "rw" );
+                positionsFile = new RandomAccessFile( file( POSITIONS_FNAME ), "rw" );
+                checkFormat();
+                readDictionaryHeader();
+            }
         }
         catch ( IOException e ) {
             e.printStackTrace();
@@ -104,6 +279,358 @@ public class PersistentHashedIndex implements Index {
         }
     }
 
+    /**
+     *  Checks that an existing data file is in the binary format this
+     *  class reads. Indexes written in the old text format have to be
+     *  rewritten with IndexConverter first.
+     */
+    private void checkFormat() throws IOException {
+        if ( dataFile.length() == 0 ) {
+            return;
+        }
+        dataFile.seek( 0 );
+        int magic = dataFile.length() >= DATA_HEADER_SIZE ? dataFile.readInt() : 0;
+        if ( magic != FORMAT_MAGIC ) {
+            System.err.println( "The data file in " + directory + " is not in the binary format, " +
+                                "convert it with ir.IndexConverter" );
+        } else {
+            int version = dataFile.readInt();
+            if ( version != FORMAT_VERSION ) {
+                System.err.println( "The data file in " + directory + " has format version " + version +
+                                    ", expected " + FORMAT_VERSION );
+            }
+        }
+    }
+
+    /**
+     *  Reads the size and the hash seed of the dictionary table from
+     *  the header of an existing dictionary file.
+     */
+    private void readDictionaryHeader() throws IOException {
+        if ( dictionaryFile.length() < DICTIONARY_HEADER_SIZE ) {
+            return;
+        }
+        dictionaryFile.seek( 0 );
+        if ( dictionaryFile.readInt() != FORMAT_MAGIC || dictionaryFile.readInt() != FORMAT_VERSION ) {
+            System.err.println( "The dictionary file in " + directory + " is not in the current format" );
+            return;
+        }
+        tableSize = dictionaryFile.readLong();
+        termCount = dictionaryFile.readLong();
+        seed = dictionaryFile.readInt();
+        loadFactor = dictionaryFile.readFloat();
+        maxProbeLength = dictionaryFile.readInt();
+        docBase = dictionaryFile.readInt();
+        docCount = dictionaryFile.readInt();
+    }
+
+    /**
+     *  Maps the dictionary, data and positions file into memory and switches
+     *  all lookups to the mappings. Must be called again after the
+     *  index has been rewritten.
+     */
+    public void mapFiles() {
+        if ( dictionaryFile == null ) {
+            // nothing has been committed yet
+            return;
+        }
+        try {
+            dictionaryMap = new MappedFile( file( DICTIONARY_FNAME ));
+            dataMap = new MappedFile( file( DATA_FNAME ));
+            positionsMap = new MappedFile( file( POSITIONS_FNAME ));
+        }
+        catch ( IOException e ) {
+            e.printStackTrace();
+            dictionaryMap = null;
+            dataMap = null;
+            positionsMap = null;
+        }
+    }
+
+    /**
+     *  Closes the dictionary, data and positions file. The mappings stay usable
+     *  until they are garbage collected.
+     */
+    public void close() {
+        try {
+            if ( dictionaryFile != null ) {
+                dictionaryFile.close();
+                dataFile.close();
+                positionsFile.close();
+            }
+        }
+        catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  The file of the given name in the current generation.
+     */
+    File file( String name ) {
+        return generation == 0 ? new File( directory, name ) : new File( directory, name + "." + generation );
+    }
+
+    /**
+     *  The file of the given name in the generation being written, from
+     *  startDataFile until commit makes it the current generation.
+     */
+    File nextFile( String name ) {
+        return new File( directory, name + "." + ( generation + 1 ));
+    }
+
+    /**
+     *  Returns true if the index holds a commit that can be searched.
+     */
+    public boolean hasCommit() {
+        return !damaged && dictionaryFile != null;
+    }
+
+    /**
+     *  Reads the manifest of the last commit, if there is one, and checks
+     *  the lengths and (if verifyOnOpen is set) the checksums of the files
+     *  it lists. Files left behind by other generations are removed.
+     *
+     *  @throws IOException if the manifest or one of the files is damaged
+     */
+    private void readManifest() throws IOException {
+        File manifest = new File( directory, MANIFEST_FNAME );
+        if ( !manifest.exists() ) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes( manifest.toPath() );
+        if ( bytes.length < 8 ) {
+            throw new IOException( "truncated manifest" );
+        }
+        CRC32C crc = new CRC32C();
+        crc.update( bytes, 0, bytes.length - 8 );
+        if ( ByteBuffer.wrap( bytes ).getLong( bytes.length - 8 ) != crc.getValue() ) {
+            throw new IOException( "bad manifest checksum" );
+        }
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ));
+        if ( in.readInt() != MANIFEST_MAGIC || in.readInt() != MANIFEST_VERSION ) {
+            throw new IOException( "unknown manifest format" );
+        }
+        long committed = in.readLong();
+        in.readInt();    // docBase and docCount, also in the dictionary header
+        in.readInt();
+        in.readLong();   // termCount
+        int files = in.readInt();
+        for ( int i = 0; i < files; i++ ) {
+            File f = new File( directory, in.readUTF() + "." + committed );
+            long length = in.readLong();
+            long checksum = in.readLong();
+            if ( f.length() != length ) {
+                throw new IOException( f + " has " + f.length() + " bytes, expected " + length );
+            }
+            if ( verifyOnOpen && checksum( f, false ) != checksum ) {
+                throw new IOException( "bad checksum of " + f );
+            }
+        }
+        generation = committed;
+        deleteOtherGenerations();
+    }
+
+    /**
+     *  Computes the CRC32C of a file, reading it sequentially through a
+     *  large buffer, and optionally forces the file to disk.
+     */
+    static long checksum( File f, boolean sync ) throws IOException {
+        CRC32C crc = new CRC32C();
+        try ( FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ )) {
+            ByteBuffer buf = ByteBuffer.allocateDirect( CHECKSUM_BUFFER_SIZE );
+            while ( channel.read( buf ) > 0 || buf.position() > 0 ) {
+                buf.flip();
+                crc.update( buf );
+                buf.clear();
+            }
+            if ( sync ) {
+                channel.force( true );
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     *  Makes the files written since startDataFile the current commit.
+     *  The files are forced to disk, a manifest with their checksums is
+     *  written and forced to a temporary file, and that file is atomically
+     *  renamed to the manifest. A crash before the rename leaves the
+     *  previous commit in place, and the generation only moves on once the
+     *  rename is done. The older generations are removed last.
+     */
+    void commit() throws IOException {
+        long committed = generation + 1;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeInt( MANIFEST_MAGIC );
+        out.writeInt( MANIFEST_VERSION );
+        out.writeLong( committed );
+        out.writeInt( docBase );
+        out.writeInt( docCount );
+        out.writeLong( termCount );
+        out.writeInt( COMMIT_FILES.length );
+        for ( String name : COMMIT_FILES ) {
+            File f = nextFile( name );
+            out.writeUTF( name );
+            out.writeLong( f.length() );
+            out.writeLong( checksum( f, true ));
+        }
+        CRC32C crc = new CRC32C();
+        crc.update( bytes.toByteArray() );
+        out.writeLong( crc.getValue() );
+        out.flush();
+        replaceAtomically( new File( directory, MANIFEST_FNAME ), bytes.toByteArray() );
+        generation = committed;
+        deleteOtherGenerations();
+    }
+
+    /**
+     *  Replaces the file with the given bytes: they are written and forced
+     *  to file + ".tmp", which is atomically renamed to the file. A crash
+     *  leaves either the old or the new contents, never a part of them.
+     */
+    static void replaceAtomically( File file, byte[] bytes ) throws IOException {
+        File tmp = new File( file.getPath() + ".tmp" );
+        try ( FileOutputStream fout = new FileOutputStream( tmp )) {
+            fout.write( bytes );
+            fout.getChannel().force( true );
+        }
+        Files.move( tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        try ( FileChannel dir = FileChannel.open( file.getAbsoluteFile().getParentFile().toPath(),
+                                                  StandardOpenOption.READ )) {
+            // makes the rename itself durable
+            dir.force( true );
+        }
+        catch ( IOException e ) {
+            // not every platform can sync a directory
+        }
+    }
+
+    /**
+     *  Removes the index files that do not belong to the current generation,
+     *  including files of an unfinished commit and a leftover manifest.tmp.
+     */
+    private void deleteOtherGenerations() {
+        File[] files = new File( directory ).listFiles();
+        if ( files == null ) {
+            return;
+        }
+        String suffix = "." + generation;
+        for ( File f : files ) {
+            String name = f.getName();
+            if ( name.equals( MANIFEST_FNAME + ".tmp" )) {
+                f.delete();
+                continue;
+            }
+            for ( String base : COMMIT_FILES ) {
+                if ( name.startsWith( base ) && !name.equals( base + suffix ) &&
+                     ( name.equals( base ) || name.matches( base + "\\.\\d+" ))) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     *  The generation of the last commit. Searches only see committed
+     *  postings, so it changes exactly when the searchable index does.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     *  Loads the dictionary with the term statistics and the docInfo file
+     *  into memory, and reads the postings of the topTerms terms found in
+     *  the most documents into the page cache, so the first searches after
+     *  opening the index do not wait for the disk. The files must be mapped.
+     *
+     *  @return The number of bytes loaded
+     */
+    long warmUp( int topTerms ) {
+        if ( dictionaryMap == null ) {
+            return 0;
+        }
+        dictionaryMap.load();
+        long bytes = dictionaryMap.length();
+        if ( docInfo != null ) {
+            bytes += docInfo.load();
+        }
+        for ( Entry entry : mostFrequentEntries( topTerms )) {
+            dataMap.load( entry.address, entry.size );
+            bytes += entry.size;
+        }
+        return bytes;
+    }
+
+    /**
+     *  The dictionary entries of the n terms found in the most documents.
+     */
+    private List<Entry> mostFrequentEntries( int n ) {
+        PriorityQueue<Entry> top = new PriorityQueue<Entry>( Comparator.comparingInt( e -> e.df ));
+        for ( long pos = 0; pos < tableSize && n > 0; pos++ ) {
+            Entry entry = readEntry( DICTIONARY_HEADER_SIZE + pos * ENTRY_SIZE );
+            if ( entry != null ) {
+                top.add( entry );
+                if ( top.size() > n ) {
+                    top.poll();
+                }
+            }
+        }
+        return new ArrayList<Entry>( top );
+    }
+
+    /**
+     *  The index can be searched once its files are mapped, after the
+     *  last write. Until then searches see an empty index.
+     */
+    public Index snapshot() {
+        return dataMap != null ? this : IndexSnapshot.EMPTY;
+    }
+
+    /**
+     *  The postings cache of the index, with its hit and miss counts.
+     */
+    public PostingsCache getPostingsCache() {
+        return postingsCache;
+    }
+
+    /**
+     *  The size of the index on disk in bytes.
+     */
+    public long sizeInBytes() {
+        File dir = new File( directory );
+        File[] files = dir.listFiles();
+        long size = 0;
+        if ( files != null ) {
+            for ( File f : files ) {
+                size += f.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     *  Closes the index and removes its directory with all its files.
+     */
+    public void delete() {
+        close();
+        postingsCache.invalidate(this);
+        if ( docInfo != null ) {
+            docInfo.close();
+        }
+        File dir = new File( directory );
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for ( File f : files ) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
     /**
      *  Writes data to the data file at a specified place.
      *
@@ -147,77 +674,117 @@ public class PersistentHashedIndex implements Index {
     /*
      *  Writes an entry to the dictionary hash table file. 
      *
-     *  @param entry The key of this entry is assumed to have a fixed length
-     *  @param ptr   The place in the dictionary file to store the entry
+     *  @param entry  The key itself is not stored, only its fingerprint.
+     *                A null entry is written as an empty slot
+     *  @param writer Positioned at the slot of the entry
      */
-    void writeEntry( Entry entry, long ptr ) {
+    void writeEntry( Entry entry, BufferedChannelWriter writer ) throws IOException {
 	//
 	//  YOUR CODE HERE
 	//
-        int entry_size = 8;         //a type long variable has 8 bytes
-        try {
-            dictionaryFile.seek(free + ptr);
-            dictionaryFile.writeLong(entry.address);
-            System.out.println(entry.key + ": " + ptr);
-        } catch (Exception e) {
-            e.printStackTrace();
-            //System.out.println(entry.key + " " + ptr);
+        writer.ensureRemaining(ENTRY_SIZE);
+        ByteBuffer buf = writer.buffer();
+        if (entry == null) {
+            buf.putLong(0).putLong(0).putInt(0).putInt(0).putLong(0).putInt(0).putInt(0);
+        } else {
+            buf.putLong(entry.fingerprint).putLong(entry.address).putInt(entry.size).putInt(entry.df);
+            buf.putLong(entry.ttf).putInt(entry.maxTf).putInt(0);
         }
-       
     }
     
-    private int seed = 131;
+    /**
+     * The home slot of a term in a table of the given size. It only depends
+     * on the fingerprint, so the distance of a stored entry from its home
+     * slot can be computed from the dictionary alone.
+     */
+    static long getHomeSlot(long fingerprint, int seed, long tableSize) {
+        long hash = (fingerprint ^ seed) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        return Long.remainderUnsigned(hash, tableSize);
+    }
     
-    private long getHashCode(String term) throws Exception{
-        char[] term_string = term.toCharArray();
-        long hashcode = 0;
-        
-        long hash = 0;
-        for (int i = 0; i < term_string.length; i++) {
-            hash = hash * seed + term_string[i];
-        }
-        
-        hashcode = hash % TABLESIZE;
-        
-        return Math.abs(hashcode);
+    /**
+     * How many slots the entry in slot pos has been moved from its home slot.
+     */
+    private static long probeLength(long fingerprint, long pos, int seed, long tableSize) {
+        long home = getHomeSlot(fingerprint, seed, tableSize);
+        return pos >= home ? pos - home : pos + tableSize - home;
     }
     
-    private long getStorePos(String term) {
-        long hashcode = 0;
-        try {
-            hashcode = getHashCode(term);
-            while (hashTableFlags[(int)hashcode] == 1) {
+    /**
+     * The number of slots needed to hold termCount terms at the given load factor.
+     */
+    static long getTableSize(long termCount, double loadFactor) {
+        long size = Math.max(2, (long)Math.ceil(termCount / loadFactor));
+        return BigInteger.valueOf(size).nextProbablePrime().longValue();
+    }
+    
+    /**
+     * Builds the dictionary table in memory with Robin Hood hashing: an 
+     * entry that is further from its home slot than the one occupying a 
+     * slot takes the slot over, and the displaced entry continues probing. 
+     * This keeps the probe lengths short and even, and lets a lookup give 
+     * up as soon as it has probed further than the entry in the slot.
+     *
+     * @return The table, indexed by slot, with null for empty slots
+     */
+    private Entry[] buildTable(List<Entry> entries) {
+        Entry[] table = new Entry[(int)tableSize];
+        long totalProbeLength = 0;
+        collisions = 0;
+        maxProbeLength = 0;
+        for (Entry entry: entries) {
+            int pos = (int)getHomeSlot(entry.fingerprint, seed, tableSize);
+            long dist = 0;
+            while (table[pos] != null) {
                 collisions++;
-                if (hashcode == (hashTableFlags.length - 1)) {
-                    hashcode = 0;
-                } else {
-                    hashcode++;
-                }       
+                long existingDist = probeLength(table[pos].fingerprint, pos, seed, tableSize);
+                if (existingDist < dist) {
+                    Entry displaced = table[pos];
+                    table[pos] = entry;
+                    entry = displaced;
+                    dist = existingDist;
+                }
+                pos = (pos + 1) % (int)tableSize;
+                dist++;
             }
-            hashTableFlags[(int)hashcode] = 1;
-        } catch (Exception e) {
-            System.out.println(term + " " + hashcode);
-            e.printStackTrace();
+            table[pos] = entry;
         }
-        return hashcode;
+        for (int pos = 0; pos < table.length; pos++) {
+            if (table[pos] != null) {
+                long dist = probeLength(table[pos].fingerprint, pos, seed, tableSize);
+                totalProbeLength += dist;
+                maxProbeLength = (int)Math.max(maxProbeLength, dist);
+            }
+        }
+        System.err.println(String.format("%d terms in %d slots (load %.2f), %d collisions, " +
+                                         "average probe length %.3f, longest %d",
+                                         entries.size(), tableSize, entries.size() / (double)tableSize, collisions,
+                                         entries.isEmpty() ? 0 : totalProbeLength / (double)entries.size(),
+                                         maxProbeLength));
+        return table;
     }
 
     /**
-     *  Reads an entry from the dictionary file.
+     *  Reads an entry from the dictionary file. The key of the entry
+     *  is not set, since only its fingerprint is in the dictionary.
      *
      *  @param ptr The place in the dictionary file where to start reading.
+     *  @return The entry, or null if the slot is empty.
      */
     Entry readEntry( long ptr ) {   
 	//
 	//  REPLACE THE STATEMENT BELOW WITH YOUR CODE 
 	//
-        long dictionary_address = 0;
         Entry entry = null;
         
         try {
-            dictionaryFile.seek(free + ptr);
-            dictionary_address = dictionaryFile.readLong();
-            entry = new Entry(getTokenFromDataFile(dictionary_address), dictionary_address);
+            ByteBuffer slot = readDictionarySlot(ptr);
+            long fingerprint = slot.getLong();
+            if (fingerprint != 0) {
+                entry = new Entry(fingerprint, slot.getLong(), slot.getInt(), slot.getInt(),
+                                  slot.getLong(), slot.getInt());
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -229,29 +796,31 @@ public class PersistentHashedIndex implements Index {
     // ==================================================================
 
     /**
-     *  Writes the document names and document lengths to file.
+     *  Writes the document names, document lengths, file sizes and
+     *  modification times of the documents in this index to file.
      *
      * @throws IOException  { exception_description }
      */
     private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo" );
-        for (Map.Entry<Integer,String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
-        }
-        fout.close();
+        DocInfo.write( nextFile( DOCINFO_FNAME ), docBase, docCount );
     }
 
 
     /**
-     *  Reads the document names and document lengths from file, and
-     *  put them in the appropriate data structures.
+     *  Reads the document names, document lengths, file sizes and 
+     *  modification times from file, and put them in the appropriate
+     *  data structures. A binary docInfo file is only mapped, and the
+     *  maps in Index read from the mapping.
      *
      * @throws     IOException  { exception_description }
      */
-    private void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
+    void readDocInfo() throws IOException {
+        File file = file( DOCINFO_FNAME );
+        if ( DocInfo.isBinary( file )) {
+            docInfo = DocInfo.open( file );
+            return;
+        }
+        // the text format of older indexes: docID;name;length[;size;mtime]
         FileReader freader = new FileReader(file);
         try (BufferedReader br = new BufferedReader(freader)) {
             String line;
@@ -259,53 +828,140 @@ public class PersistentHashedIndex implements Index {
                String[] data = line.split(";");
                docNames.put(new Integer(data[0]), data[1]);
                docLengths.put(new Integer(data[0]), new Integer(data[2]));
+               if (data.length >= 5) {
+                   // written since the file size and mtime are recorded
+                   docFileSizes.put(Integer.valueOf(data[0]), Long.valueOf(data[3]));
+                   docModifiedTimes.put(Integer.valueOf(data[0]), Long.valueOf(data[4]));
+               }
             }
         }
         freader.close();
     }
 
     private int collisions = 0;
+
+    /**
+     *  Starts a new commit: creates the files of the next generation and
+     *  starts writing the data file and the positions file from their
+     *  headers. Records are then written in term order through the 
+     *  returned writer, and their offsets through positionsWriter. The
+     *  commit is finished by writeDictionary, the docInfo file and commit.
+     */
+    BufferedChannelWriter startDataFile() throws IOException {
+        // lookups go to the new files from now on
+        postingsCache.invalidate(this);
+        dictionaryMap = null;
+        dataMap = null;
+        positionsMap = null;
+        close();
+        damaged = false;
+        dictionaryFile = new RandomAccessFile( nextFile( DICTIONARY_FNAME ), "rw" );
+        dataFile = new RandomAccessFile( nextFile( DATA_FNAME ), "rw" );
+        positionsFile = new RandomAccessFile( nextFile( POSITIONS_FNAME ), "rw" );
+
+        FileChannel positionsChannel = positionsFile.getChannel();
+        positionsChannel.truncate(0);
+        positionsChannel.position(0);
+        positionsWriter = new BufferedChannelWriter(positionsChannel);
+        positionsWriter.writeInt(FORMAT_MAGIC);
+        positionsWriter.writeInt(FORMAT_VERSION);
+
+        FileChannel dataChannel = dataFile.getChannel();
+        dataChannel.truncate(0);
+        dataChannel.position(0);
+        BufferedChannelWriter dataWriter = new BufferedChannelWriter(dataChannel);
+        dataWriter.writeInt(FORMAT_MAGIC);
+        dataWriter.writeInt(FORMAT_VERSION);
+        return dataWriter;
+    }
+
+    /**
+     *  Builds the dictionary table for the records of the data file
+     *  and writes it to the dictionary file.
+     *
+     *  @return The size of the dictionary file
+     */
+    long writeDictionary( List<Entry> entries ) throws IOException {
+        termCount = entries.size();
+        tableSize = getTableSize(termCount, loadFactor);
+        /**
+         * the dictionary is written slot by slot from start to end, empty 
+         * slots included, so it is one sequential stream as well
+         */
+        Entry[] table = buildTable(entries);
+        FileChannel dictionaryChannel = dictionaryFile.getChannel();
+        dictionaryChannel.truncate(0);
+        dictionaryChannel.position(0);
+        BufferedChannelWriter dictionaryWriter = new BufferedChannelWriter(dictionaryChannel);
+        ByteBuffer header = dictionaryWriter.buffer();
+        header.putInt(FORMAT_MAGIC).putInt(FORMAT_VERSION);
+        header.putLong(tableSize).putLong(termCount);
+        header.putInt(seed).putFloat((float)loadFactor).putInt(maxProbeLength);
+        header.putInt(docBase).putInt(docCount);
+        header.position(DICTIONARY_HEADER_SIZE);
+        for (int pos = 0; pos < table.length; pos++) {
+            writeEntry(table[pos], dictionaryWriter);
+        }
+        dictionaryWriter.flush();
+        return dictionaryWriter.position();
+    }
+
     /**
      *  Write the index to files.
      */
     public void writeIndex() {
         
         try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
-
+            if (docCount < 0) {
+                docCount = docNames.isEmpty() ? 0 : Collections.max(docNames.keySet()) + 1 - docBase;
+            }
             // Write the dictionary and the postings list
            
 	    // 
 	    //  YOUR CODE HERE
 	    //
-            long filePointer = 0;               //offset of file pointer
-            //dataFile = new RandomAccessFile(DATA_FNAME, "rw");
-            
-            long filling = 0;
-            for (int i = 0; i < TABLESIZE; i++) {
-                dictionaryFile.writeLong(filling);
-            }
+            long startTime = System.currentTimeMillis();
             
+            List<Entry> entries = new ArrayList<Entry>(index.size());
             PostingsList postingList = null;
+            BufferedChannelWriter dataWriter = startDataFile();
+
+            // Write the 'docNames' and 'docLengths' hash maps to a file
+            writeDocInfo();
             
             /**
-             * write all the posting lists into the data file, 
-             * and build a hash map from the terms to their offsets in the data file 
+             * stream all the posting lists into the data file through one large 
+             * buffer in term order, and remember where each of them starts. 
+             * Sorted data files can be merged by reading them sequentially
              */
-            for (String key: index.keySet()) {
-                filePointer = dataFile.getFilePointer();
-                postingList = index.get(key);
-                dataFile.writeBytes(key + ";" + postingList.toString());
-                writeEntry(new Entry(key, filePointer), getStorePos(key) * 8);
+            String[] terms = index.keySet().toArray(new String[index.size()]);
+            Arrays.sort(terms);
+            for (String term: terms) {
+                postingList = index.get(term);
+                PostingsCodec.Encoded encoded = PostingsCodec.encode(term, postingList, docBase,
+                                                                     positionsWriter.position());
+                entries.add(new Entry(term, dataWriter.position(), encoded.record.length,
+                                      PostingsCodec.readStats(encoded.record)));
+                dataWriter.write(encoded.record);
+                positionsWriter.write(encoded.positions);
             }
-            //System.out.println("Terms size: " + index.keySet().size());
-            //dataFile.close();
+            dataWriter.flush();
+            positionsWriter.flush();
+            long dataSize = dataWriter.position() + positionsWriter.position();
+            long dictionarySize = writeDictionary(entries);
+            commit();
+            // the documents are read from the new docInfo file from now on
+            readDocInfo();
+            
+            long elapsedTime = Math.max(1, System.currentTimeMillis() - startTime);
+            System.err.println(String.format("Wrote %.1f MB of postings and %.1f MB of dictionary " +
+                                             "in %.1f seconds (%.1f MB/s)",
+                                             dataSize / 1e6, dictionarySize / 1e6, elapsedTime / 1000.0,
+                                             (dataSize + dictionarySize) / 1e3 / elapsedTime));
         }
         catch ( Exception e ) {
             e.printStackTrace();
         }
-        System.err.println( collisions + " collisions." );
     }
 
  
@@ -321,74 +977,169 @@ public class PersistentHashedIndex implements Index {
 	//  REPLACE THE STATEMENT BELOW WITH YOUR CODE
 	//
 	PostingsList postingsList = null;
-        long dic_address = 0, data_address = 0;
-        long hashcode = 0;
-        String t = "";
+        ByteBuffer record = findRecord(token);
+        if (record != null) {
+            postingsList = PostingsCodec.decodePostings(record, readPositions(record), docBase);
+        }
+	return postingsList;
+    }
+
+    /**
+     * Returns a cursor over the postings of a term, or null if the term
+     * is not in the index. The postings of a term searched often enough
+     * to be let into the postings cache are decoded once and then served
+     * from the cache; the others are decoded by the cursor as it moves.
+     */
+    public PostingsCursor getCursor( String token ) {
+        CachedPostings cached = postingsCache.get(this, token);
+        if (cached != null) {
+            return cached.cursor();
+        }
+        Entry entry = findEntry(token);
+        if (entry == null) {
+            return null;
+        }
+        if (postingsCache.admits(this, token, CachedPostings.weight(entry.df))) {
+            cached = CachedPostings.decode(entry.record, this);
+            postingsCache.put(this, token, cached);
+            return cached.cursor();
+        }
+        return new BlockPostingsCursor(entry.record, this);
+    }
+
+    /**
+     * Returns the statistics of a term from the dictionary, without
+     * decoding its postings.
+     */
+    public TermStats getTermStats( String token ) {
+        Entry entry = findEntry(token);
+        return entry == null ? null : entry.getStats();
+    }
+
+    /**
+     * Looks up the record of a term without decoding its postings.
+     *
+     * @return The record positioned after the term, or null if the term
+     *         is not in the index
+     */
+    ByteBuffer findRecord( String token ) {
+        Entry entry = findEntry(token);
+        return entry == null ? null : entry.record;
+    }
+
+    /**
+     * Looks up the dictionary entry of a term. Only the head of its
+     * record is read, to check the term.
+     *
+     * @return The entry with its record, or null if the term is not in the index
+     */
+    Entry findEntry( String token ) {
+        if (tableSize == 0) {
+            return null;
+        }
+        long fingerprint = Hash.fingerprint(token);
         try {
-            hashcode = getHashCode(token);
+            long pos = getHomeSlot(fingerprint, seed, tableSize);
             /**
-             * given that only address are stored in dictionary file, 
-             * when fetching a term form dictionary, we need to look up the 
-             * data file to get the name of tokens, and compare them with the searching key words
+             * the probe only compares fingerprints in the dictionary file.
+             * The data file is read once the fingerprint matches, and the term 
+             * at the head of the record settles the (very unlikely) case of 
+             * two terms with the same fingerprint.
+             * The probe stops at an empty slot, at an entry closer to its home 
+             * slot than the term would be (Robin Hood hashing would have put the 
+             * term there), or after the longest probe length of the table
              */
-            while (!token.equals(t)) {
-                dic_address = hashcode * 8;
-                dictionaryFile.seek(free + dic_address);
-                data_address = dictionaryFile.readLong();
-                t = getTokenFromDataFile(data_address);
-                hashcode += 1;
+            for (long dist = 0; dist <= maxProbeLength; dist++) {
+                Entry entry = readEntry(DICTIONARY_HEADER_SIZE + pos * ENTRY_SIZE);
+                if (entry == null || probeLength(entry.fingerprint, pos, seed, tableSize) < dist) {
+                    break;
+                }
+                if (entry.fingerprint == fingerprint) {
+                    ByteBuffer record = readRecord(entry.address, entry.size);
+                    if (token.equals(PostingsCodec.readTerm(record))) {
+                        entry.record = record;
+                        return entry;
+                    }
+                }
+                pos = (pos + 1) % tableSize;
             }
-            
-            postingsList = getPostingFromDataFile(data_address);
         } catch (Exception e) {
             e.printStackTrace();
         }
-        
-	return postingsList;
+        return null;
     }
     
-    private PostingsList getPostingFromDataFile(long address) {
-        PostingsList postingsList = null;
-        
-        try {
-            dataFile.seek(free + address);
-            String line = dataFile.readLine();
-            //extract the toekn from the file
-            String[] strings = line.split(";");
-            if (strings.length > 0) {
-                postingsList = new PostingsList();
-                for (int i = 1; i < strings.length; i++) {
-                    ArrayList<Integer> offsets = new ArrayList();
-                    //extract docID and offsets from the file
-                    String[] entry = strings[i].split("-");
-                    for (int j = 2; j < entry.length; j++) {
-                        offsets.add(Integer.valueOf(entry[j]));
-                    }
-                    postingsList.addEntry(new PostingsEntry(Integer.valueOf(entry[0]), offsets));
-                }
+    /**
+     * Reads the dictionary entry stored at a place in the dictionary file.
+     * Without the mapping the file pointer is shared, so the seek and the
+     * read have to happen under a lock.
+     */
+    private ByteBuffer readDictionarySlot(long ptr) throws IOException {
+        MappedFile map = dictionaryMap;
+        if (map != null) {
+            return map.slice(free + ptr, ENTRY_SIZE);
+        }
+        byte[] slot = new byte[ENTRY_SIZE];
+        synchronized (dictionaryFile) {
+            dictionaryFile.seek(free + ptr);
+            dictionaryFile.readFully(slot);
+        }
+        return ByteBuffer.wrap(slot);
+    }
+    
+    /**
+     * Reads a whole record (term and postings) from the data file
+     * with a single read, see PostingsCodec for the layout.
+     *
+     * @param size The size of the record, including its length field
+     * @return The record, positioned after the length field
+     */
+    private ByteBuffer readRecord(long address, int size) throws IOException {
+        ByteBuffer record;
+        MappedFile map = dataMap;
+        if (map != null) {
+            record = map.slice(free + address, size);
+        } else {
+            byte[] data = new byte[size];
+            synchronized (dataFile) {
+                dataFile.seek(free + address);
+                dataFile.readFully(data);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            record = ByteBuffer.wrap(data);
         }
-        
-        return postingsList;
+        record.position(4);
+        return record;
     }
     
-    private String getTokenFromDataFile(long address){
-        String token = null;
-        
+
+    /**
+     * Reads the offsets of a term from the positions file.
+     *
+     * @param body The record body of the term, positioned after the term
+     */
+    ByteBuffer readPositions(ByteBuffer body) {
+        PostingsCodec.Header header = PostingsCodec.readHeader(body.duplicate());
+        return readPositions(header.positionsStart, (int)header.positionsLength);
+    }
+
+    /**
+     * Reads a part of the positions file with a single read.
+     */
+    ByteBuffer readPositions(long address, int size) {
+        MappedFile map = positionsMap;
+        if (map != null) {
+            return map.slice(address, size);
+        }
+        byte[] data = new byte[size];
         try {
-            dataFile.seek(free + address);
-            String line = dataFile.readLine();
-            String[] strings = line.split(";");
-            if (strings.length > 0) {
-                token = strings[0];
+            synchronized (positionsFile) {
+                positionsFile.seek(address);
+                positionsFile.readFully(data);
             }
-        } catch (Exception e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        
-        return token;
+        return ByteBuffer.wrap(data);
     }
     
 
@@ -411,12 +1162,14 @@ public class PersistentHashedIndex implements Index {
 
 
     /**
-     *  Write index to file after indexing is done.
+     *  Write index to file after indexing is done, and serve all
+     *  further lookups from memory-mapped files.
      */
     public void cleanup() {
         System.err.println( index.keySet().size() + " unique words" );
         System.err.print( "Writing index to disk..." );
         writeIndex();
+        mapFiles();
         System.err.println( "done!" );
      }
 
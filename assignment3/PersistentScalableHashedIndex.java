@@ -6,61 +6,201 @@
 package ir;
 
 import java.io.File;
-import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
+ * A single-pass in-memory indexer (SPIMI). Tokens are collected in a
+ * main-memory hash map as in SegmentedIndex, but whenever the estimated
+ * size of the map passes the memory budget, or it holds too many terms,
+ * the map is written to ./merge as a sorted segment and emptied, so
+ * collections much larger than the heap can be indexed.
+ *
+ * Segments are only flushed between documents, so every document lives
+ * in exactly one segment and the segments cover increasing docID ranges.
+ * After every flush the TieredMergePolicy picks runs of neighbouring
+ * segments of about the same size, which are merged on background
+ * threads while indexing goes on. Searches see the new segment list once
+ * a merge is done. Cleanup merges everything that is left into one final
+ * segment.
  *
  * @author Zehua
  */
-public class PersistentScalableHashedIndex extends PersistentHashedIndex{
-    private final int MAX_SIZE = 100000;
-    private final long TABLESIZE = 3500000L;
-    private int tokenCount = 0;
-    
-    private final String DIRECTORY = "." + File.separator + "merge" + File.separator;
-    private final String DICTIONARY_NAME = "dictionary";
-    private final String DATA_NAME = "data";
-    
-    RandomAccessFile dictionaryFile = null;
-    RandomAccessFile dataFile = null;
-    
-    
+public class PersistentScalableHashedIndex extends SegmentedIndex {
+
+    /** Flush a segment when the map holds this many terms. */
+    private static final int MAX_SIZE = 100000;
+
+    /** Rough heap cost of a term in the map: entry, String and PostingsList with its arrays. */
+    static final int BYTES_PER_TERM = 160;
+
+    /** Rough heap cost of a posting: three ints, with the slack of the growing arrays. */
+    static final int BYTES_PER_ENTRY = 18;
+
+    /** Rough heap cost of one offset in the packed offsets array. */
+    static final int BYTES_PER_OFFSET = 6;
+
+    private static final String DIRECTORY = "." + File.separator + "merge" + File.separator;
+
+    /** Write rate of background merges in MB/s, 0 for no limit. */
+    static final double MAX_MERGE_RATE = 64;
+
+    /** Flush a segment when the map is estimated to use this many bytes. */
+    long memoryBudget;
+
+    /** Flush a segment when the map holds this many terms. */
+    int maxTerms = MAX_SIZE;
+
+    /** Estimated heap use of the map in bytes. */
+    private long estimatedSize = 0;
+
+    /** Segments that are being merged, guarded by segmentsLock. */
+    private final Set<PersistentHashedIndex> merging = new HashSet<PersistentHashedIndex>();
+
+    final SegmentMerger merger = new SegmentMerger();
+
+    final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+
+    private long indexingStart = 0;
+    private long tokenCount = 0;
+
+
+    /**
+     * Creates an indexer with a memory budget of a quarter of the maximum heap.
+     */
     public PersistentScalableHashedIndex() {
-        super();
-        try {
-            dictionaryFile = new RandomAccessFile(DIRECTORY + DICTIONARY_NAME, "rw");
-            dataFile = new RandomAccessFile(DIRECTORY + DATA_NAME, "rw");
-        } catch (Exception e) {
-            e.printStackTrace();
+        this(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    public PersistentScalableHashedIndex(long memoryBudget) {
+        super(DIRECTORY);
+        this.memoryBudget = memoryBudget;
+        merger.setMaxMergeRate(MAX_MERGE_RATE);
+    }
+
+    @Override
+    void replaceSegments(List<PersistentHashedIndex> inputs, PersistentHashedIndex merged) {
+        super.replaceSegments(inputs, merged);
+        synchronized (segmentsLock) {
+            merging.removeAll(inputs);
         }
-        
     }
-    
+
+    /**
+     * Starts a throttled background merge for every run of segments the
+     * merge policy picks.
+     */
+    private void maybeMerge() {
+        List<List<PersistentHashedIndex>> merges;
+        synchronized (segmentsLock) {
+            merges = mergePolicy.findMerges(segments, merging);
+            for (List<PersistentHashedIndex> inputs: merges) {
+                merging.addAll(inputs);
+            }
+        }
+        for (final List<PersistentHashedIndex> inputs: merges) {
+            final String directory = newSegmentDirectory();
+            merger.submit(() -> {
+                try {
+                    replaceSegments(inputs, merger.merge(inputs, directory, true));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    synchronized (segmentsLock) {
+                        merging.removeAll(inputs);
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * A new document: the only place where a segment may be flushed.
+     */
+    @Override
+    void startDocument(int docID) {
+        if (estimatedSize >= memoryBudget || index.size() >= maxTerms) {
+            flushSegment();
+        }
+        super.startDocument(docID);
+        if (indexingStart == 0) {
+            indexingStart = System.currentTimeMillis();
+        }
+    }
+
     @Override
     public void insert( String token, int docID, int offset ) {
-        
-        long filling = 0;
-        
-        try {
-            for (int i = 0; i < TABLESIZE; i++) {
-                dictionaryFile.writeLong(filling);
+        if (docID != lastDocID) {
+            startDocument(docID);
+        }
+        PostingsList postingList = postingsForInsert(token, docID);
+        if (postingList.size() == 0) {
+            estimatedSize += BYTES_PER_TERM + 2 * token.length();
+        }
+        if (postingList.lastDocID() != docID) {
+            estimatedSize += BYTES_PER_ENTRY;
+        }
+        postingList.addDocOff(docID, offset);
+        estimatedSize += BYTES_PER_OFFSET;
+        tokenCount++;
+    }
+
+    /**
+     * Writes the main-memory map to a new segment in ./merge, empties it
+     * and starts the merges the new segment calls for.
+     */
+    @Override
+    PersistentHashedIndex flushSegment() {
+        long startTime = System.currentTimeMillis();
+        int terms = index.size();
+        int first = firstDocID;
+        PersistentHashedIndex segment = super.flushSegment();
+        if (segment == null) {
+            return null;
+        }
+
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        long totalTime = Math.max(1, System.currentTimeMillis() - indexingStart);
+        System.err.println(String.format("Flushed %s: %d terms, docs %d-%d, ~%d MB in %.1f seconds " +
+                                         "(%d tokens/s so far)",
+                                         segment.directory, terms, first, lastDocID, estimatedSize >> 20,
+                                         elapsedTime / 1000.0, tokenCount * 1000 / totalTime));
+        estimatedSize = 0;
+        maybeMerge();
+        return segment;
+    }
+
+    /**
+     * Merges all segments into one at full speed, after the running
+     * merges are done.
+     */
+    void mergeAll() {
+        merger.waitForMerges();
+        Future<Object> done = merger.submit(() -> {
+            List<PersistentHashedIndex> inputs = segments;
+            if (inputs.size() > 1) {
+                replaceSegments(inputs, merger.merge(inputs, newSegmentDirectory()));
             }
+            return null;
+        });
+        try {
+            done.get();
         } catch (Exception e) {
             e.printStackTrace();
         }
-        
-        if (index.size() == MAX_SIZE) {
-            cleanup();
-        }
-        MergingThread merge = new MergingThread();
-        new Thread(merge).start();
     }
-    
+
     @Override
     public void cleanup() {
-        System.err.println( index.keySet().size() + " unique words" );
-        System.err.print( "Writing index to disk..." );
-        writeIndex();
-        System.err.println( "done!" );
+        System.err.print( "Writing the last segment to disk..." );
+        flushSegment();
+        refresh();
+        lastDocID = -1;
+        mergeAll();
+        System.err.println( String.format( "done! %d segments in %s, %d merges at %.1f MB/s",
+                                           segments.size(), DIRECTORY, merger.getMergesDone(),
+                                           merger.getThroughput() ));
     }
 }
@@ -0,0 +1,354 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of decoded postings, bounded by their size in bytes. When the
+ * cache is full, the least recently used of a few sampled entries is
+ * evicted, and a new entry is only let in (TinyLFU admission) if its term
+ * has been asked for more often than the entry it would push out, so one
+ * scan over many rare terms cannot flush the hot terms. How often a term
+ * has been asked for is estimated with a count-min sketch of 4-bit
+ * counters, which are halved every so often so that old popularity fades.
+ *
+ * Lookups take no lock: the entries are in a ConcurrentHashMap, the last
+ * use is a time stamp in the entry, and the sketch counters are updated
+ * with compare-and-set. Only admission and eviction lock the cache.
+ *
+ * One cache can be shared by many indexes, for example all segments of a
+ * SegmentedIndex, since entries are keyed by index and term.
+ *
+ * @author Zehua
+ */
+public class PostingsCache {
+
+    /** The default bound of a cache. */
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    /** Number of hash functions (rows) of the frequency sketch. */
+    private static final int SKETCH_DEPTH = 4;
+
+    /** The highest count of a sketch counter. */
+    private static final int MAX_COUNT = 15;
+
+    /** Number of entries sampled for the least recently used one. */
+    private static final int SAMPLES = 8;
+
+    private static final long[] SEEDS = {
+        0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+
+    /** The key of an entry: a term in one index. */
+    private static final class Key {
+        final PersistentHashedIndex index;
+        final String term;
+
+        Key(PersistentHashedIndex index, String term) {
+            this.index = index;
+            this.term = term;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key)o).index == index && ((Key)o).term.equals(term);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(index) + term.hashCode();
+        }
+    }
+
+    /** A cached entry, with the time it was last used. */
+    private static final class Node {
+        final Key key;
+        final CachedPostings postings;
+        final long weight;
+        volatile long lastUsed = System.nanoTime();
+        /** The position of the node in nodes, guarded by the cache. */
+        int slot;
+
+        Node(Key key, CachedPostings postings) {
+            this.key = key;
+            this.postings = postings;
+            this.weight = postings.weight();
+        }
+    }
+
+    private final long maxBytes;
+
+    /** The total weight of the entries, changed with the cache locked. */
+    private volatile long bytes = 0;
+
+    /** The entries, read without locking. */
+    private final ConcurrentHashMap<Key,Node> entries = new ConcurrentHashMap<Key,Node>();
+
+    /** The entries in no particular order, to sample eviction candidates from. Guarded by the cache. */
+    private final ArrayList<Node> nodes = new ArrayList<Node>();
+
+    /** The sketch counters, 16 in each long. */
+    private final AtomicLongArray sketch;
+    private final int sketchMask;
+
+    /** Lookups until the counters are halved. */
+    private final int sampleSize;
+    private final AtomicInteger samples = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+
+    public PostingsCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes The bound of the total weight of the entries, 0 to cache nothing
+     */
+    public PostingsCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        // about one counter per 64 bytes of cache in each row
+        int counters = Integer.highestOneBit((int)Math.min(1 << 24, Math.max(1024, maxBytes / 64)));
+        sketch = new AtomicLongArray(maxBytes == 0 ? 0 : counters / 16);
+        sketchMask = counters - 1;
+        sampleSize = 10 * counters / SKETCH_DEPTH;
+    }
+
+    /**
+     * Looks the term up, and counts the lookup for the admission of the
+     * term later on. Takes no lock.
+     *
+     * @return The cached postings, or null
+     */
+    public CachedPostings get(PersistentHashedIndex index, String term) {
+        if (maxBytes == 0) {
+            return null;
+        }
+        Key key = new Key(index, term);
+        increment(key);
+        Node node = entries.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        node.lastUsed = System.nanoTime();
+        return node.postings;
+    }
+
+    /**
+     * Returns true if postings of the given weight for the term would be
+     * let into the cache, so they are only decoded when they are kept.
+     */
+    public boolean admits(PersistentHashedIndex index, String term, long weight) {
+        if (weight <= maxBytes && bytes + weight <= maxBytes) {
+            return true;
+        }
+        synchronized (this) {
+            if (canAdmit(new Key(index, term), weight)) {
+                return true;
+            }
+        }
+        rejections.increment();
+        return false;
+    }
+
+    /**
+     * Compares the term with the least recently used of a few sampled
+     * entries. Called with the cache locked.
+     */
+    private boolean canAdmit(Key key, long weight) {
+        if (weight > maxBytes) {
+            return false;
+        }
+        if (bytes + weight <= maxBytes) {
+            return true;
+        }
+        Node victim = sampleVictim(null);
+        return victim == null || frequency(key) > frequency(victim.key);
+    }
+
+    /**
+     * Returns the least recently used of SAMPLES random entries other
+     * than the given one, or null if there is no other entry. Called with
+     * the cache locked.
+     */
+    private Node sampleVictim(Node keep) {
+        Node victim = null;
+        int size = nodes.size();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < SAMPLES && size > 0; i++) {
+            Node node = nodes.get(size <= SAMPLES ? i % size : random.nextInt(size));
+            if (node != keep && (victim == null || node.lastUsed < victim.lastUsed)) {
+                victim = node;
+            }
+        }
+        return victim;
+    }
+
+    private void addNode(Node node) {
+        node.slot = nodes.size();
+        nodes.add(node);
+        bytes += node.weight;
+    }
+
+    private void removeNode(Node node) {
+        Node last = nodes.remove(nodes.size() - 1);
+        if (last != node) {
+            nodes.set(node.slot, last);
+            last.slot = node.slot;
+        }
+        bytes -= node.weight;
+    }
+
+    /**
+     * Adds the postings of a term if they are admitted, and evicts the
+     * least recently used of sampled entries to make room for them.
+     */
+    public synchronized void put(PersistentHashedIndex index, String term, CachedPostings postings) {
+        Key key = new Key(index, term);
+        Node node = new Node(key, postings);
+        if (!canAdmit(key, node.weight)) {
+            rejections.increment();
+            return;
+        }
+        Node previous = entries.put(key, node);
+        if (previous != null) {
+            removeNode(previous);
+        }
+        addNode(node);
+        while (bytes > maxBytes) {
+            Node victim = sampleVictim(node);
+            if (victim == null) {
+                break;
+            }
+            entries.remove(victim.key, victim);
+            removeNode(victim);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Removes all entries of an index, when the index is rewritten or deleted.
+     */
+    public synchronized void invalidate(PersistentHashedIndex index) {
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            Node node = nodes.get(i);
+            if (node.key.index == index) {
+                entries.remove(node.key, node);
+                removeNode(node);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        nodes.clear();
+        bytes = 0;
+    }
+
+    private int counterIndex(Key key, int row) {
+        long hash = (key.hashCode() + SEEDS[row]) * SEEDS[(row + 1) % SKETCH_DEPTH];
+        hash ^= hash >>> 29;
+        return (int)hash & sketchMask;
+    }
+
+    private static int counter(long word, int i) {
+        return (int)(word >>> ((i & 15) << 2)) & 0xF;
+    }
+
+    private int counter(int i) {
+        return counter(sketch.get(i >>> 4), i);
+    }
+
+    /**
+     * Counts a lookup of the key, with a compare-and-set of each counter
+     * instead of a lock.
+     */
+    private void increment(Key key) {
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            int i = counterIndex(key, row);
+            long word;
+            do {
+                word = sketch.get(i >>> 4);
+            } while (counter(word, i) < MAX_COUNT &&
+                     !sketch.compareAndSet(i >>> 4, word, word + (1L << ((i & 15) << 2))));
+        }
+        if (samples.incrementAndGet() >= sampleSize) {
+            halveCounters();
+        }
+    }
+
+    /**
+     * Halves every counter, so that the counts follow the recent lookups.
+     */
+    private synchronized void halveCounters() {
+        if (samples.get() < sampleSize) {
+            // another thread was first
+            return;
+        }
+        for (int i = 0; i < sketch.length(); i++) {
+            long word;
+            do {
+                word = sketch.get(i);
+            } while (!sketch.compareAndSet(i, word, (word >>> 1) & 0x7777777777777777L));
+        }
+        // lookups counted by other threads meanwhile are kept
+        samples.updateAndGet(n -> n / 2);
+    }
+
+    /** The estimated number of recent lookups of the key. */
+    private int frequency(Key key) {
+        int min = MAX_COUNT;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            min = Math.min(min, counter(counterIndex(key, row)));
+        }
+        return min;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** Number of postings the admission kept out of the cache. */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public long sizeInBytes() {
+        return bytes;
+    }
+
+    public double getHitRate() {
+        long hits = getHits();
+        long misses = getMisses();
+        return hits + misses == 0 ? 0 : hits / (double)(hits + misses);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d terms, %.1f of %.1f MB, %d hits, %d misses (%.1f%% hits), %d evictions, " +
+                             "%d rejected", entries.size(), bytes / 1e6, maxBytes / 1e6, getHits(), getMisses(),
+                             100 * getHitRate(), getEvictions(), getRejections());
+    }
+}
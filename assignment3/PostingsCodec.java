@@ -0,0 +1,403 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes postings lists in the binary on-disk format.
+ *
+ * All integers are variable-byte integers: seven bits per byte, low bits
+ * first, with the high bit set on every byte except the last one. DocIDs
+ * are stored as gaps from the previous docID of the list, and the offsets
+ * of a document as gaps from the previous offset in the same document.
+ * The first docID is stored as a gap from the docID base of the index
+ * (0 unless the index is one segment of a larger index).
+ *
+ * The docIDs and term frequencies are kept apart from the offsets. A
+ * record in the data file looks like this:
+ *
+ *   int    length of the rest of the record
+ *   vint   length of the term in bytes, followed by the UTF-8 term
+ *   vint   number of documents
+ *   vlong  total number of occurrences
+ *   vint   highest term frequency in one document
+ *   vint   last docID of the list, relative to the docID base
+ *   vlong  start of the offsets of the term in the positions file
+ *   vlong  length of the offsets in the positions file
+ *   the skip table, if the list has more than BLOCK_SIZE documents:
+ *     for each block:
+ *       int last docID of the block, relative to the docID base
+ *       int end of the block, relative to the start of the postings
+ *       int end of the offsets of the block, relative to their start
+ *   for each document:
+ *     vint docID gap, vint tf
+ *
+ * and the offsets are in the positions file, in the same document order:
+ *
+ *   for each document:
+ *     tf * vint offset gap
+ *
+ * so a search that only needs docIDs and term frequencies never reads
+ * the positions file.
+ *
+ * The postings are cut into blocks of BLOCK_SIZE documents. The gaps run
+ * on across the blocks, so the list is read from the start as if there
+ * were no blocks, but a PostingsCursor can use the skip table to jump to
+ * the block holding a docID without decoding the blocks before it.
+ *
+ * @author Zehua
+ */
+public class PostingsCodec {
+
+    /** Number of documents in a block of postings. */
+    public static final int BLOCK_SIZE = 128;
+
+    /** Size of an entry of the skip table in bytes. */
+    public static final int SKIP_ENTRY_SIZE = 12;
+
+    /**
+     * A record for the data file, and the offsets of the term to be
+     * written to the positions file at the place the record points to.
+     */
+    public static class Encoded {
+        public final byte[] record;
+        public final byte[] positions;
+
+        Encoded(byte[] record, byte[] positions) {
+            this.record = record;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * The fields at the head of a record body, after the term.
+     */
+    public static class Header {
+        public int df;
+        public long ttf;
+        public int maxTf;
+        public int lastDocGap;
+        public long positionsStart;
+        public long positionsLength;
+    }
+
+    /**
+     * Writes a non-negative int as a variable-byte integer.
+     */
+    public static void writeVInt(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte)value);
+    }
+
+    /**
+     * Reads a variable-byte integer from the current position of the buffer.
+     */
+    public static int readVInt(ByteBuffer buf) {
+        byte b = buf.get();
+        int value = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = buf.get();
+            value |= (b & 0x7F) << shift;
+        }
+        return value;
+    }
+
+    /**
+     * The number of bytes needed to store the value as a variable-byte integer.
+     */
+    public static int vIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a non-negative long as a variable-byte integer.
+     */
+    public static void writeVLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte)value);
+    }
+
+    public static long readVLong(ByteBuffer buf) {
+        byte b = buf.get();
+        long value = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = buf.get();
+            value |= (b & 0x7FL) << shift;
+        }
+        return value;
+    }
+
+    public static int vLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a term and its postings list as one record, ready to be
+     * written to the data file, and its offsets.
+     *
+     * @param positionsStart Where the offsets will be written in the positions file
+     */
+    public static Encoded encode(String term, PostingsList postingsList, int docBase, long positionsStart) {
+        int size = 0;
+        int positionsSize = 0;
+        int lastDocID = docBase;
+        long ttf = 0;
+        int maxTf = 0;
+        for (int i = 0; i < postingsList.size(); i++) {
+            int tf = postingsList.freq(i);
+            ttf += tf;
+            maxTf = Math.max(maxTf, tf);
+            size += vIntSize(postingsList.docID(i) - lastDocID) + vIntSize(tf);
+            int lastOffset = 0;
+            for (int j = 0; j < tf; j++) {
+                int offset = postingsList.position(i, j);
+                positionsSize += vIntSize(offset - lastOffset);
+                lastOffset = offset;
+            }
+            lastDocID = postingsList.docID(i);
+        }
+
+        ByteBuffer postings = ByteBuffer.allocate(size);
+        ByteBuffer positions = ByteBuffer.allocate(positionsSize);
+        lastDocID = docBase;
+        for (int i = 0; i < postingsList.size(); i++) {
+            int tf = postingsList.freq(i);
+            writeVInt(postings, postingsList.docID(i) - lastDocID);
+            writeVInt(postings, tf);
+            int lastOffset = 0;
+            for (int j = 0; j < tf; j++) {
+                int offset = postingsList.position(i, j);
+                writeVInt(positions, offset - lastOffset);
+                lastOffset = offset;
+            }
+            lastDocID = postingsList.docID(i);
+        }
+        postings.flip();
+        positions.flip();
+        byte[] record = record(term, postingsList.size(), ttf, maxTf, lastDocID - docBase, positionsStart,
+                               postings, positions);
+        return new Encoded(record, positions.array());
+    }
+
+    /**
+     * The number of blocks of a list of df documents, 0 if the list fits
+     * in one block and has no skip table.
+     */
+    public static int numBlocks(int df) {
+        return df <= BLOCK_SIZE ? 0 : (df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Builds a record from its statistics and the encoded postings and
+     * offsets, and adds the skip table if the list has more than one block.
+     */
+    private static byte[] record(String term, int df, long ttf, int maxTf, int lastDocGap, long positionsStart,
+                                 ByteBuffer postings, ByteBuffer positions) {
+        byte[] termBytes = term.getBytes(StandardCharsets.UTF_8);
+        int blocks = numBlocks(df);
+        int size = vIntSize(termBytes.length) + termBytes.length + vIntSize(df) + vLongSize(ttf) +
+            vIntSize(maxTf) + vIntSize(lastDocGap) + vLongSize(positionsStart) +
+            vLongSize(positions.remaining()) + blocks * SKIP_ENTRY_SIZE + postings.remaining();
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + size);
+        buf.putInt(size);
+        writeVInt(buf, termBytes.length);
+        buf.put(termBytes);
+        writeVInt(buf, df);
+        writeVLong(buf, ttf);
+        writeVInt(buf, maxTf);
+        writeVInt(buf, lastDocGap);
+        writeVLong(buf, positionsStart);
+        writeVLong(buf, positions.remaining());
+        if (blocks > 0) {
+            writeSkipTable(buf, postings.duplicate(), positions.duplicate(), df);
+        }
+        buf.put(postings);
+        return buf.array();
+    }
+
+    /**
+     * Finds the end of every block in the postings and in the offsets by
+     * stepping over them, without decoding the offsets, and writes the
+     * skip table.
+     */
+    private static void writeSkipTable(ByteBuffer buf, ByteBuffer postings, ByteBuffer positions, int df) {
+        int start = postings.position();
+        int positionsStart = positions.position();
+        int docGap = 0;
+        for (int i = 0; i < df; i++) {
+            docGap += readVInt(postings);
+            skipVInts(positions, readVInt(postings));
+            if ((i + 1) % BLOCK_SIZE == 0 || i == df - 1) {
+                buf.putInt(docGap);
+                buf.putInt(postings.position() - start);
+                buf.putInt(positions.position() - positionsStart);
+            }
+        }
+    }
+
+    /**
+     * Moves the buffer past the next count variable-byte integers.
+     */
+    public static void skipVInts(ByteBuffer buf, int count) {
+        int pos = buf.position();
+        while (count > 0) {
+            if ((buf.get(pos++) & 0x80) == 0) {
+                count--;
+            }
+        }
+        buf.position(pos);
+    }
+
+    /**
+     * Reads the term at the current position of a record body (the part
+     * after the length field).
+     */
+    public static String readTerm(ByteBuffer buf) {
+        int length = readVInt(buf);
+        byte[] termBytes = new byte[length];
+        buf.get(termBytes);
+        return new String(termBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the statistics at the head of a whole record (with its
+     * length field).
+     */
+    public static TermStats readStats(byte[] record) {
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        buf.getInt();
+        int termLength = readVInt(buf);
+        buf.position(buf.position() + termLength);
+        int df = readVInt(buf);
+        long ttf = readVLong(buf);
+        int maxTf = readVInt(buf);
+        return new TermStats(df, ttf, maxTf, record.length);
+    }
+
+    /**
+     * Reads the head of a record body that follows the term, and leaves
+     * the buffer at the skip table.
+     */
+    public static Header readHeader(ByteBuffer buf) {
+        Header header = new Header();
+        header.df = readVInt(buf);
+        header.ttf = readVLong(buf);
+        header.maxTf = readVInt(buf);
+        header.lastDocGap = readVInt(buf);
+        header.positionsStart = readVLong(buf);
+        header.positionsLength = readVLong(buf);
+        return header;
+    }
+
+    /**
+     * Decodes the postings that follow the term of a record body.
+     * @param positions The offsets of the term from the positions file
+     * @param docBase   The docID base the record was encoded with
+     */
+    public static PostingsList decodePostings(ByteBuffer buf, ByteBuffer positions, int docBase) {
+        return decodePostings(buf, positions, docBase, null);
+    }
+
+    /**
+     * Decodes the postings that follow the term of a record body and
+     * appends them to a list.
+     * @param postingsList The list to append to, or null for a new list
+     */
+    public static PostingsList decodePostings(ByteBuffer buf, ByteBuffer positions, int docBase,
+                                              PostingsList postingsList) {
+        int df = readHeader(buf).df;
+        buf.position(buf.position() + numBlocks(df) * SKIP_ENTRY_SIZE);
+        if (postingsList == null) {
+            postingsList = new PostingsList(df);
+        }
+        int docID = docBase;
+        for (int i = 0; i < df; i++) {
+            docID += readVInt(buf);
+            int tf = readVInt(buf);
+            // docIDs are strictly increasing, so there is no need for the
+            // duplicate check done by PostingsList.addEntry
+            postingsList.add(docID);
+            int offset = 0;
+            for (int j = 0; j < tf; j++) {
+                offset += readVInt(positions);
+                postingsList.addOffset(offset);
+            }
+        }
+        return postingsList;
+    }
+
+    /**
+     * Concatenates the postings of one term from several records into one
+     * record. The records must be given in docID order and cover disjoint
+     * docID ranges. Only the first docID gap of each part is rewritten, the
+     * rest of each part and all offsets are copied as they are, and the
+     * skip table is built again for the blocks of the whole list.
+     *
+     * @param bodies         The record bodies, each positioned after the term
+     * @param positions      The offsets of the term in each part
+     * @param docBases       The docID base each record was encoded with
+     * @param docBase        The docID base of the new record
+     * @param positionsStart Where the offsets will be written in the new positions file
+     */
+    public static Encoded concatenate(String term, ByteBuffer[] bodies, ByteBuffer[] positions, int[] docBases,
+                                      int docBase, long positionsStart) {
+        int df = 0;
+        long ttf = 0;
+        int maxTf = 0;
+        int[] firstDocIDs = new int[bodies.length];
+        int[] lastDocIDs = new int[bodies.length];
+        for (int i = 0; i < bodies.length; i++) {
+            Header header = readHeader(bodies[i]);
+            df += header.df;
+            ttf += header.ttf;
+            maxTf = Math.max(maxTf, header.maxTf);
+            lastDocIDs[i] = docBases[i] + header.lastDocGap;
+            bodies[i].position(bodies[i].position() + numBlocks(header.df) * SKIP_ENTRY_SIZE);
+            firstDocIDs[i] = docBases[i] + readVInt(bodies[i]);
+        }
+        int size = 0;
+        int positionsSize = 0;
+        int previous = docBase;
+        for (int i = 0; i < bodies.length; i++) {
+            size += vIntSize(firstDocIDs[i] - previous) + bodies[i].remaining();
+            positionsSize += positions[i].remaining();
+            previous = lastDocIDs[i];
+        }
+
+        ByteBuffer postings = ByteBuffer.allocate(size);
+        ByteBuffer allPositions = ByteBuffer.allocate(positionsSize);
+        previous = docBase;
+        for (int i = 0; i < bodies.length; i++) {
+            writeVInt(postings, firstDocIDs[i] - previous);
+            postings.put(bodies[i]);
+            allPositions.put(positions[i]);
+            previous = lastDocIDs[i];
+        }
+        postings.flip();
+        allPositions.flip();
+        byte[] record = record(term, df, ttf, maxTf, previous - docBase, positionsStart, postings, allPositions);
+        return new Encoded(record, allPositions.array());
+    }
+}
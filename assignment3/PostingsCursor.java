@@ -0,0 +1,52 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+/**
+ * Walks through the postings of a term in docID order without building
+ * the postings list. A new cursor is positioned before the first
+ * document, and docID() is NO_MORE_DOCS once the list is exhausted.
+ *
+ * @author Zehua
+ */
+public interface PostingsCursor {
+
+    /** The docID of an exhausted cursor. */
+    int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /**
+     * The current document, -1 before the first call of nextDoc or advance.
+     */
+    int docID();
+
+    /**
+     * Moves to the next document and returns its docID.
+     */
+    int nextDoc();
+
+    /**
+     * Moves to the first document whose docID is at least target and
+     * returns its docID. The cursor never moves backwards, so if the
+     * current document is at least target it stays where it is.
+     */
+    int advance(int target);
+
+    /**
+     * The number of occurrences of the term in the current document.
+     */
+    int freq();
+
+    /**
+     * The offsets of the term in the current document, freq() of them,
+     * decoded on the first call.
+     */
+    int[] positions();
+
+    /**
+     * The number of documents in the whole list.
+     */
+    int cost();
+}
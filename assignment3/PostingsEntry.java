@@ -7,10 +7,6 @@
 
 package ir;
 
-import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.StringTokenizer;
 import java.io.Serializable;
 import java.lang.Math;
 
@@ -35,10 +31,10 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable, C
     // YOUR CODE HERE
     //
     
+    private static final int[] NO_OFFSETS = new int[0];
+
     // used for 1.4 phrase query
-    public ArrayList<Integer> offsets = new ArrayList();
-    
-    private ArrayList<Double> weights = new ArrayList();
+    public int[] offsets = NO_OFFSETS;
     
     public PostingsEntry(int docID) {
         this.docID = docID;
@@ -49,52 +45,41 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable, C
         this.score = score;
     }
     
-    public PostingsEntry(int docID, ArrayList<Integer> offsets) {
+    public PostingsEntry(int docID, int[] offsets) {
         this.docID = docID;
         this.offsets = offsets;
     }
     
-    public void addDocOff(int offset) {
-        offsets.add(offset);
-        //return true;
+    public PostingsEntry(int docID, double score, int[] offsets) {
+        this.docID = docID;
+        this.score = score;
+        this.offsets = offsets;
     }
     
-    public ArrayList<Integer> getOffsets() {
+    public int[] getOffsets() {
         return offsets;
     }
     
     public int getOffset(int pos) {
-        if(pos >= offsets.size()) {
+        if(pos >= offsets.length) {
             return -1;
         } else {
-            return offsets.get(pos);
+            return offsets[pos];
         }
     }
     
     public double getTermFrequency() {
-        return (double)offsets.size();
+        return (double)offsets.length;
     }
     
     public double getLogTermFrequency() {
-        if (offsets.isEmpty()) {
+        if (offsets.length == 0) {
             return 0;
         } else {
-            return Math.log10(offsets.size()) + (double)1;
+            return Math.log10(offsets.length) + (double)1;
         }
     }
     
-    public void setScore(double weight) {
-        weights.add(weight);
-    }
-    
-    public double getWeight(int index) {
-        return weights.get(index);
-    }
-    
-    public ArrayList<Double> getWeight() {
-        return weights;
-    }
-    
     /**
      * I overwrite this 'equals' method for ArrayList.contains to
      * make comparison between two PostingEntry objects, the comparison 
@@ -6,67 +6,280 @@
  */
 package ir;
 
-import java.lang.Integer;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.BitSet;
 
+/**
+ *  A postings list kept in parallel primitive arrays: the docIDs and term
+ *  frequencies, and one packed array with the offsets of all postings, in
+ *  which positionStarts[i] is where the offsets of posting i begin. Result
+ *  lists also get an array of scores. The arrays grow by half their size,
+ *  so appending is amortised constant time, and a posting costs a few ints
+ *  instead of a PostingsEntry with lists of boxed numbers.
+ *
+ *  The indexer adds documents in increasing docID order, so addDocOff and
+ *  addEntry only compare with the last posting. Lists in no particular
+ *  order are combined with mergeUnordered.
+ */
 public class PostingsList implements Comparable<PostingsList> {
 
+    private static final int[] EMPTY = new int[0];
+
+    /** The smallest capacity the arrays grow to. */
+    private static final int MIN_CAPACITY = 4;
+
+    /**
+     * Number of postings in this list.
+     */
+    private int size = 0;
+
+    private int[] docIDs = EMPTY;
+    private int[] freqs = EMPTY;
+    private int[] positionStarts = EMPTY;
+
+    /** The offsets of all postings, one posting after the other. */
+    private int[] positions = EMPTY;
+    private int positionCount = 0;
+
+    /** The scores of a result list, null until a score is set. */
+    private double[] scores = null;
+
+
+    public PostingsList() {
+    }
+
     /**
-     * The postings list
+     * Creates a list with room for the given number of postings.
      */
-    private ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
+    public PostingsList(int capacity) {
+        docIDs = new int[capacity];
+        freqs = new int[capacity];
+        positionStarts = new int[capacity];
+    }
 
     /**
      * Number of postings in this list.
      */
     public int size() {
-        return list.size();
+        return size;
+    }
+
+    /**
+     * The docID of the ith posting.
+     */
+    public int docID(int i) {
+        return docIDs[i];
+    }
+
+    /**
+     * The number of offsets of the ith posting.
+     */
+    public int freq(int i) {
+        return freqs[i];
+    }
+
+    /**
+     * The jth offset of the ith posting.
+     */
+    public int position(int i, int j) {
+        return positions[positionStarts[i] + j];
+    }
+
+    /**
+     * A copy of the offsets of the ith posting.
+     */
+    public int[] positions(int i) {
+        return Arrays.copyOfRange(positions, positionStarts[i], positionStarts[i] + freqs[i]);
+    }
+
+    /**
+     * The score of the ith posting, 0 if no score has been set.
+     */
+    public double score(int i) {
+        return scores == null ? 0 : scores[i];
+    }
+
+    public void setScore(int i, double score) {
+        if (scores == null) {
+            scores = new double[docIDs.length];
+        }
+        scores[i] = score;
     }
 
     /**
-     * Returns the ith posting.
+     * Returns the ith posting as a PostingsEntry. The entry is a copy.
      */
     public PostingsEntry get(int i) {
-        return list.get(i);
+        return new PostingsEntry(docIDs[i], score(i), positions(i));
     }
 
-    // 
-    //  YOUR CODE HERE
-    //
-    
-    public boolean contains(PostingsEntry e) {
-        if (list.contains(e)) {
-            return true;
-        } else {
-            return false;
+    /**
+     * Returns copies of all postings as PostingsEntry objects.
+     */
+    public ArrayList<PostingsEntry> toEntries() {
+        ArrayList<PostingsEntry> entries = new ArrayList<PostingsEntry>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(get(i));
         }
+        return entries;
     }
-    
-    public ArrayList<PostingsEntry> getList() {
-        return list;
+
+    /**
+     * Makes room for one more posting.
+     */
+    private void growPostings() {
+        if (size == docIDs.length) {
+            int capacity = Math.max(MIN_CAPACITY, size + (size >> 1));
+            docIDs = Arrays.copyOf(docIDs, capacity);
+            freqs = Arrays.copyOf(freqs, capacity);
+            positionStarts = Arrays.copyOf(positionStarts, capacity);
+            if (scores != null) {
+                scores = Arrays.copyOf(scores, capacity);
+            }
+        }
     }
-    
-    public void setEntrys(ArrayList<PostingsEntry> list) {
-        this.list = list;
+
+    /**
+     * Makes room for the given number of offsets more.
+     */
+    private void growPositions(int count) {
+        if (positionCount + count > positions.length) {
+            int capacity = Math.max(MIN_CAPACITY, positions.length + (positions.length >> 1));
+            positions = Arrays.copyOf(positions, Math.max(capacity, positionCount + count));
+        }
     }
 
+    /**
+     * Appends a posting without offsets. The list is not checked for the docID.
+     */
+    public void add(int docID) {
+        growPostings();
+        docIDs[size] = docID;
+        freqs[size] = 0;
+        positionStarts[size] = positionCount;
+        if (scores != null) {
+            scores[size] = 0;
+        }
+        size++;
+    }
+
+    /**
+     * Appends a posting with a score. The list is not checked for the docID.
+     */
+    public void add(int docID, double score) {
+        add(docID);
+        if (score != 0) {
+            setScore(size - 1, score);
+        }
+    }
+
+    /**
+     * Appends a posting with its offsets. The list is not checked for the docID.
+     */
+    public void add(int docID, int[] offsets) {
+        add(docID);
+        growPositions(offsets.length);
+        System.arraycopy(offsets, 0, positions, positionCount, offsets.length);
+        positionCount += offsets.length;
+        freqs[size - 1] = offsets.length;
+    }
+
+    /**
+     * Appends the ith posting of another list, with its offsets and score.
+     */
+    public void add(PostingsList other, int i) {
+        add(other.docIDs[i], other.score(i));
+        int count = other.freqs[i];
+        growPositions(count);
+        System.arraycopy(other.positions, other.positionStarts[i], positions, positionCount, count);
+        positionCount += count;
+        freqs[size - 1] = count;
+    }
+
+    /**
+     * Appends an offset to the last posting.
+     */
+    public void addOffset(int offset) {
+        growPositions(1);
+        positions[positionCount++] = offset;
+        freqs[size - 1]++;
+    }
+
+    public boolean contains(int docID) {
+        return getEntryIndex(docID) != -1;
+    }
+
+    public boolean contains(PostingsEntry e) {
+        return contains(e.docID);
+    }
+
+    /** The docIDs, valid up to size(), for cursors. */
+    int[] docIDArray() {
+        return docIDs;
+    }
+
+    /** The term frequencies, valid up to size(), for cursors. */
+    int[] freqArray() {
+        return freqs;
+    }
+
+    /**
+     * The docID of the last posting, -1 for an empty list.
+     */
+    public int lastDocID() {
+        return size == 0 ? -1 : docIDs[size - 1];
+    }
+
+    /**
+     * Appends an entry, unless it is the document of the last posting.
+     * Entries must come in increasing docID order.
+     */
     public void addEntry(PostingsEntry entry) {
-        if (!list.contains(entry)) {
-            list.add(entry);
+        int last = lastDocID();
+        if (entry.docID < last) {
+            throw new IllegalArgumentException("docID " + entry.docID + " added after " + last);
+        }
+        if (entry.docID > last) {
+            add(entry.docID, entry.score);
+            int[] offsets = entry.getOffsets();
+            growPositions(offsets.length);
+            System.arraycopy(offsets, 0, positions, positionCount, offsets.length);
+            positionCount += offsets.length;
+            freqs[size - 1] = offsets.length;
         }
     }
     
+    /**
+     * Adds an offset of a document, which must be the document of the
+     * last posting or follow it.
+     */
     public void addDocOff(int docID, int offset) {
-        int entry_index = getEntryIndex(docID);
-        //PostingsEntry entry = getEntry(docID);
-        if (entry_index == -1) {
-            PostingsEntry entry = new PostingsEntry(docID);
-            //entry.addDocOff(offset);
-            entry.offsets.add(offset);
-            list.add(entry);
-        } else {
-            list.get(entry_index).offsets.add(offset);
+        int last = lastDocID();
+        if (docID != last) {
+            if (docID < last) {
+                throw new IllegalArgumentException("docID " + docID + " added after " + last);
+            }
+            add(docID);
+        }
+        addOffset(offset);
+    }
+
+    /**
+     * Appends the postings of another list whose documents are not in this
+     * list yet. Neither list has to be in docID order; the docIDs of this
+     * list are marked in a bit set, so the merge takes linear time.
+     */
+    public void mergeUnordered(PostingsList other) {
+        BitSet present = new BitSet();
+        for (int i = 0; i < size; i++) {
+            present.set(docIDs[i]);
+        }
+        for (int i = 0; i < other.size; i++) {
+            if (!present.get(other.docIDs[i])) {
+                present.set(other.docIDs[i]);
+                add(other, i);
+            }
         }
     }
     
@@ -76,35 +289,49 @@ public class PostingsList implements Comparable<PostingsList> {
      * @return 
      */
     public int getEntryIndex(int docID) {
-        int index = -1;
-        
-        for (int i = list.size() - 1; i >= 0; i--) {
-            if (list.get(i).docID == docID) {
-                index = i;
-                return index;
+        for (int i = size - 1; i >= 0; i--) {
+            if (docIDs[i] == docID) {
+                return i;
             }
         }
-        return index;
+        return -1;
     }
     
     /**
      * Get the term frequency of a certain document based on docID
      */
     public double getTermFrequency(int docID) {
-        for (PostingsEntry entry: list) {
-            if (entry.docID == docID) {
-                return (double)entry.getTermFrequency();
-            }
-        }
-        // The document doesn't contain the specified term
-        return 0;
+        int i = getEntryIndex(docID);
+        // 0 if the document doesn't contain the specified term
+        return i == -1 ? 0 : (double)freqs[i];
     }
 
+    /**
+     * A view of the postings added so far. Later appends do not change
+     * it: they only write past its size, or into new arrays.
+     */
+    PostingsList snapshot() {
+        PostingsList view = new PostingsList();
+        view.size = size;
+        view.docIDs = docIDs;
+        view.freqs = freqs;
+        view.positionStarts = positionStarts;
+        view.positions = positions;
+        view.positionCount = positionCount;
+        view.scores = scores;
+        return view;
+    }
+
+    /**
+     * Empties the list. New arrays are started, since snapshots of the
+     * list may share the old ones.
+     */
     public void clear() {
-        list.clear();
+        size = 0;
+        docIDs = freqs = positionStarts = positions = EMPTY;
+        positionCount = 0;
+        scores = null;
     }
-    
-        
 
     /**
      * 
@@ -125,16 +352,11 @@ public class PostingsList implements Comparable<PostingsList> {
     @Override
     public String toString() {
         StringBuilder ret = new StringBuilder();
-        PostingsEntry entry = null;
-        ArrayList<Integer> offsetList = null;
-        //System.out.println("Size of entry: " + list.size());
-        for (int i = 0; i < list.size(); i++) {
-            entry = list.get(i);
-            ret.append(String.valueOf(entry.docID)).append("-");
-            offsetList = entry.getOffsets();
-            for (int j = 0; j < offsetList.size(); j++) {
+        for (int i = 0; i < size; i++) {
+            ret.append(String.valueOf(docIDs[i])).append("-");
+            for (int j = 0; j < freqs[i]; j++) {
                 ret.append("-");
-                ret.append(offsetList.get(j));
+                ret.append(position(i, j));
             }
             ret.append(";");
         }
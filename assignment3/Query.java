@@ -8,12 +8,10 @@
 package ir;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.StringTokenizer;
-import java.util.Iterator;
 import java.nio.charset.*;
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
 
 
 /**
@@ -120,46 +118,45 @@ public class Query {
         if (results == null) {
             return;
         }
-        if (results.getList().isEmpty()) {
+        if (results.size() == 0) {
             return;
         }
+        // Used to get idf and tf of documents
+        Index snapshot = engine.index.snapshot();
+        if (!(snapshot instanceof HashedIndex)) {
+            // only the main-memory index keeps the term vectors of the documents
+            return;
+        }
+        TermDictionary terms = ((HashedIndex)snapshot).getTermDictionary();
+        ForwardIndex forwardIndex = ((HashedIndex)snapshot).getForwardIndex();
         
         double alpha = this.alpha / (double)queryterm.size();
-        HashMap<String, Boolean> queryIdentifier = new HashMap();
+        // The IDs of the terms already in the query
+        BitSet queryIdentifier = new BitSet();
         
         for (QueryTerm tTerm: queryterm) {
             tTerm.weight = alpha;
-            queryIdentifier.put(tTerm.term, true);
+            int termID = terms.getID(tTerm.term);
+            if (termID >= 0) {
+                queryIdentifier.set(termID);
+            }
         }
         
         // Notation: The lengths of the results and docIsRelevant are not equal.
         
-        // Used to get idf and tf of documents
-        Index hashedIndex = engine.index;
-        HashMap<Integer, HashMap<String, Boolean>> docIndex = ((HashedIndex)hashedIndex).docIndex;
-        
-        int index = 0;
-        for (PostingsEntry tEntry: results.getList()) {
+        for (int index = 0; index < results.size() && index < docIsRelevant.length; index++) {
             if (docIsRelevant[index]) {
-                HashMap<String, Boolean> tMap = docIndex.get(tEntry.docID);
-                int size_doc = tMap.size();
+                int[] docTerms = forwardIndex.getTermIDs(results.docID(index));
+                int size_doc = docTerms.length;
                 double beta = this.beta / (double)size_doc;
-                Iterator iter = tMap.entrySet().iterator();
-                while (iter.hasNext()) {
-                    Map.Entry entry = (Map.Entry) iter.next();
-                    String token = (String)entry.getKey();
-                    if (!queryIdentifier.containsKey(token)) {
-                        queryIdentifier.put(token, true);
-                        queryterm.add(new QueryTerm(token, beta));
+                for (int termID: docTerms) {
+                    if (!queryIdentifier.get(termID)) {
+                        queryIdentifier.set(termID);
+                        queryterm.add(new QueryTerm(terms.getTerm(termID), beta));
                     }
                 }
                 
             }
-            
-            index++;
-            if (index >= docIsRelevant.length) {
-                break;
-            }
         }
         
 //        // A array used to store all the relevant document vectors
@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * A file of the queries searched so far, one query per line. The terms
+ * searched most in earlier runs are the ones worth reading into memory
+ * before the first search of the next run.
+ *
+ * @author Zehua
+ */
+public class QueryLog {
+
+    private final File file;
+
+    public QueryLog(String fileName) {
+        file = new File(fileName);
+    }
+
+    /**
+     * Appends a query to the end of the log.
+     */
+    public synchronized void append(String query) {
+        if (query.isEmpty()) {
+            return;
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            out.write(query.replace('\n', ' '));
+            out.write('\n');
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the n terms occurring in the most logged queries, the most
+     * frequent first, or no terms if there is no log yet.
+     */
+    public synchronized List<String> mostFrequentTerms(int n) {
+        HashMap<String,Integer> counts = new HashMap<String,Integer>();
+        if (file.exists()) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    StringTokenizer tok = new StringTokenizer(line);
+                    while (tok.hasMoreTokens()) {
+                        counts.merge(tok.nextToken(), 1, Integer::sum);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        List<Map.Entry<String,Integer>> sorted = new ArrayList<Map.Entry<String,Integer>>(counts.entrySet());
+        sorted.sort(Map.Entry.<String,Integer>comparingByValue().reversed());
+        List<String> terms = new ArrayList<String>();
+        for (int i = 0; i < sorted.size() && i < n; i++) {
+            terms.add(sorted.get(i).getKey());
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+/**
+ * Limits the rate at which bytes are written. Every writer calls pause
+ * after writing some bytes and sleeps long enough to keep the total rate
+ * of all writers sharing the limiter at or below the limit.
+ *
+ * @author Zehua
+ */
+public class RateLimiter {
+
+    /** Sleeps shorter than this are saved up rather than taken. */
+    private static final long MIN_PAUSE_NANOS = 2000000L;
+
+    private final double nanosPerByte;
+
+    /** The time at which all bytes written so far are paid for. */
+    private long nextFree = System.nanoTime();
+
+    public RateLimiter(double mbPerSec) {
+        this.nanosPerByte = 1e3 / mbPerSec;
+    }
+
+    /**
+     * Accounts for the bytes just written and sleeps if they came too fast.
+     */
+    public void pause(long bytes) {
+        long sleep;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFree < now) {
+                nextFree = now;
+            }
+            nextFree += (long)(bytes * nanosPerByte);
+            sleep = nextFree - now;
+        }
+        if (sleep >= MIN_PAUSE_NANOS) {
+            try {
+                Thread.sleep(sleep / 1000000L, (int)(sleep % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
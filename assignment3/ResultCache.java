@@ -0,0 +1,191 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import ir.Query.QueryTerm;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of search results, keyed by the query type, the ranking type
+ * and the normalised terms of the query. A result is stored with the
+ * generation of the index it was computed on (see Index.getGeneration),
+ * and is not used once the index has moved on to another generation.
+ *
+ * Only the docIDs and scores of a result are kept, and only of results
+ * with at most maxResults entries: a longer result is not cached at all,
+ * so that a hit returns the same documents as the search would. Queries
+ * without results are not cached either. The cache is bounded by the
+ * total number of results it holds, and drops the least recently used
+ * queries first.
+ *
+ * @author Zehua
+ */
+public class ResultCache {
+
+    public static final int DEFAULT_MAX_RESULTS = 10000;
+    public static final int DEFAULT_MAX_TOTAL_RESULTS = 1000000;
+
+    /** A cached result. */
+    private static final class Result {
+        final long generation;
+        final int[] docIDs;
+        final double[] scores;
+
+        /** The query terms after wildcard expansion, as the search left them. */
+        final ArrayList<QueryTerm> terms;
+
+        Result(long generation, int[] docIDs, double[] scores, ArrayList<QueryTerm> terms) {
+            this.generation = generation;
+            this.docIDs = docIDs;
+            this.scores = scores;
+            this.terms = terms;
+        }
+    }
+
+    private final int maxResults;
+    private final long maxTotalResults;
+    private long totalResults = 0;
+
+    /** The results, least recently used first. */
+    private final LinkedHashMap<String,Result> results = new LinkedHashMap<String,Result>(16, 0.75f, true);
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /** Misses on a result of an older generation. */
+    private long invalidations = 0;
+
+
+    public ResultCache() {
+        this(DEFAULT_MAX_RESULTS, DEFAULT_MAX_TOTAL_RESULTS);
+    }
+
+    /**
+     * @param maxResults      Most entries of a result that is cached
+     * @param maxTotalResults Most entries kept of all results together, 0 to cache nothing
+     */
+    public ResultCache(int maxResults, long maxTotalResults) {
+        this.maxResults = maxResults;
+        this.maxTotalResults = maxTotalResults;
+    }
+
+    /**
+     * The cache key of a query. The terms of intersection and ranked
+     * queries are sorted, since their order does not change the result;
+     * the ranking type only matters for ranked queries.
+     */
+    public static String key(Query query, QueryType queryType, RankingType rankingType) {
+        List<String> terms = new ArrayList<String>(query.size());
+        for (QueryTerm qt: query.queryterm) {
+            terms.add(queryType == QueryType.RANKED_QUERY ? qt.term + "^" + qt.weight : qt.term);
+        }
+        if (queryType != QueryType.PHRASE_QUERY) {
+            Collections.sort(terms);
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(queryType).append('/');
+        key.append(queryType == QueryType.RANKED_QUERY ? rankingType : "").append('/');
+        for (String term: terms) {
+            key.append(term).append(' ');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns a copy of the cached result of the query, and puts the query
+     * terms the search left in the query back, or returns null if there
+     * is no result of the given generation.
+     */
+    public synchronized PostingsList get(String key, long generation, Query query) {
+        Result result = results.get(key);
+        if (result != null && result.generation != generation) {
+            remove(key);
+            invalidations++;
+            result = null;
+        }
+        if (result == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        query.queryterm = new ArrayList<QueryTerm>(result.terms);
+        PostingsList postingsList = new PostingsList(result.docIDs.length);
+        for (int i = 0; i < result.docIDs.length; i++) {
+            postingsList.add(result.docIDs[i], result.scores[i]);
+        }
+        return postingsList;
+    }
+
+    /**
+     * Stores the result of a query computed on the given generation.
+     *
+     * @param postingsList The result, null if nothing was found
+     */
+    public synchronized void put(String key, long generation, Query query, PostingsList postingsList) {
+        if (postingsList == null || postingsList.size() == 0) {
+            return;
+        }
+        int size = postingsList.size();
+        if (size > maxResults || size > maxTotalResults) {
+            return;
+        }
+        int[] docIDs = new int[size];
+        double[] scores = new double[size];
+        for (int i = 0; i < size; i++) {
+            docIDs[i] = postingsList.docID(i);
+            scores[i] = postingsList.score(i);
+        }
+        remove(key);
+        results.put(key, new Result(generation, docIDs, scores, new ArrayList<QueryTerm>(query.queryterm)));
+        totalResults += size;
+        Iterator<Map.Entry<String,Result>> it = results.entrySet().iterator();
+        while (totalResults > maxTotalResults && it.hasNext()) {
+            Result eldest = it.next().getValue();
+            totalResults -= eldest.docIDs.length;
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Result result = results.remove(key);
+        if (result != null) {
+            totalResults -= result.docIDs.length;
+        }
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        totalResults = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Number of misses on a result computed on an older generation of the index. */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : hits / (double)(hits + misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d queries, %d results, %d hits, %d misses (%.1f%% hits), %d invalidated",
+                             results.size(), totalResults, hits, misses, 100 * getHitRate(), invalidations);
+    }
+}
@@ -141,6 +141,7 @@ public class SearchGUI extends JFrame {
                 // Turn the search string into a Query
                 String queryString = queryWindow.getText().toLowerCase().trim();
                 query = new Query( queryString );
+                engine.logQuery( queryString );
                 // Take relevance feedback from the user into account (assignment 3)
                 // Check which documents the user has marked as relevant.
                 if ( box != null ) {
@@ -151,14 +152,16 @@ public class SearchGUI extends JFrame {
                     }
                     query.relevanceFeedback( results, relevant, engine );
                 }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // Search and print results. The search runs on a snapshot of the
+                // index, so it does not wait for the files being indexed.
                 long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
-                    results = engine.searcher.search( query, queryType, rankingType );
-                }
+                results = engine.searcher.search( query, queryType, rankingType );
                 long elapsedTime = System.currentTimeMillis() - startTime;
+                System.err.println( "Result cache: " + engine.searcher.getResultCache() );
+                PostingsCache postingsCache = engine.searcher.getPostingsCache();
+                if ( postingsCache != null ) {
+                    System.err.println( "Postings cache: " + postingsCache );
+                }
                 // Display the first few results + a button to see all results.
                 //
                 // We don't want to show all results directly since the displaying itself
@@ -168,9 +171,7 @@ public class SearchGUI extends JFrame {
                 } else {
                     displayInfoText( "Found 0 matching document(s)" );
                     SpellingOptionsDialog dialog = new SpellingOptionsDialog(50);
-		    // To make this compile, you will need to add to the Engine class
-		    // an instance variable 'speller' of class SpellChecker 
-                    String[] corrections = engine.speller.check(query, 10);
+                    String[] corrections = engine.getSpeller().check(query, 10);
                     if (corrections != null && corrections.length > 0) {
                         String choice = dialog.show(corrections, corrections[0]);
                         if (choice != null) {
@@ -267,9 +268,9 @@ public class SearchGUI extends JFrame {
         box = new JCheckBox[maxResultsToDisplay];
         int i;
         for ( i=0; i<results.size() && i<maxResultsToDisplay; i++ ) {
-            String description = i + ". " + displayableFileName( engine.index.docNames.get( results.get(i).docID ));
+            String description = i + ". " + displayableFileName( engine.index.docNames.get( results.docID(i) ));
             if ( queryType == QueryType.RANKED_QUERY ) {
-                description += "   " + String.format( "%.5f", results.get(i).score );
+                description += "   " + String.format( "%.5f", results.score(i) );
             }
             box[i] = new JCheckBox();
             box[i].setSelected( false );
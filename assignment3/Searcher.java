@@ -14,6 +14,7 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.util.Collections;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import java.lang.Math;
 import java.util.HashMap;
@@ -32,6 +33,9 @@ public class Searcher {
 
     /** The index to be searched by this Searcher. */
     Index index;
+
+    /** The results of recent queries, valid as long as the index generation stays the same. */
+    ResultCache resultCache = new ResultCache();
     
     /** The table that contains mappings from pagename to file named to pagerank*/
     
@@ -45,7 +49,13 @@ public class Searcher {
      * @param query
      * @return The query after processed
      */
-    private List<List<QueryTerm>> preprocessQuery(Query query) {
+    private List<List<QueryTerm>> preprocessQuery(Index index, Query query) {
+        if (!(index instanceof HashedIndex) || ((HashedIndex)index).getKgIndex() == null) {
+            // only the main-memory index has a k-gram index for wildcards, once it is built
+            List<List<QueryTerm>> combinations = new ArrayList<>();
+            combinations.add(new ArrayList<QueryTerm>(query.queryterm));
+            return combinations;
+        }
         KGramIndex kgIndex = ((HashedIndex)index).getKgIndex();
         int K = kgIndex.getK();
         // Store all the possible combinations of query words
@@ -124,9 +134,17 @@ public class Searcher {
 	//
 	//  REPLACE THE STATEMENT BELOW WITH YOUR CODE
 	//
+        // the whole search runs on one snapshot, so the index can change meanwhile
+        Index index = this.index.snapshot();
+        long generation = index.getGeneration();
+        String cacheKey = ResultCache.key(query, queryType, rankingType);
+        PostingsList cached = resultCache.get(cacheKey, generation, query);
+        if (cached != null) {
+            return cached;
+        }
 //        System.out.println("Starting preprocessing...");
 //        long startTime = System.currentTimeMillis();
-        List<List<QueryTerm>> query_combination = preprocessQuery(query);
+        List<List<QueryTerm>> query_combination = preprocessQuery(index, query);
 //        System.out.println("Preprocessing is over.");
 //        long elapsedTime = System.currentTimeMillis() - startTime;
 //        System.out.println("All possible combinations: " + query_combination.size());
@@ -139,16 +157,16 @@ public class Searcher {
             switch(queryType) {
                 case INTERSECTION_QUERY:
                     if(query.size() == 1) {
-                        postingsList = singleWordSearch(query);
+                        postingsList = singleWordSearch(index, query);
                     } else {
-                        postingsList = intersectionSearch(query);
+                        postingsList = intersectionSearch(index, query);
                     }
                     break;
                 case PHRASE_QUERY:
-                    postingsList = phraseSearch(query);
+                    postingsList = phraseSearch(index, query);
                     break;
                 case RANKED_QUERY:
-                    postingsList = rankedSearch(query, rankingType);       
+                    postingsList = rankedSearch(index, query, rankingType);       
                     break;
                 default:
                     break;
@@ -197,29 +215,67 @@ public class Searcher {
                 entries.add(new PostingsEntry((int)entry.getKey(), (double)entry.getValue()));
             }
             Collections.sort(entries);
-            ret = new PostingsList();
-            ret.setEntrys(entries);
+            ret = new PostingsList(entries.size());
+            for (PostingsEntry entry: entries) {
+                ret.add(entry.docID, entry.score);
+            }
         }
         
+        ret = removeDeletedDocs(index, ret);
+        resultCache.put(cacheKey, generation, query, ret);
         return ret;
     }
     
-    private PostingsList mergePostingsList(PostingsList plist1, PostingsList plist2) {
-        ArrayList<PostingsEntry> list = plist2.getList();
-        for (int i = list.size() - 1; i >= 0; i--) {
-            PostingsEntry entry = list.get(i);
-            if (!plist1.contains(entry)) {
-                plist1.addEntry(entry);
+    /**
+     * The postings cache of the index, with its hit, miss and eviction
+     * counts, or null if the index does not read its postings from disk.
+     */
+    public PostingsCache getPostingsCache() {
+        if (index instanceof SegmentedIndex) {
+            return ((SegmentedIndex)index).getPostingsCache();
+        }
+        if (index instanceof PersistentHashedIndex) {
+            return ((PersistentHashedIndex)index).getPostingsCache();
+        }
+        return null;
+    }
+
+    /**
+     * The result cache, with its hit and miss counts.
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Leaves the documents marked deleted in a snapshot of a SegmentedIndex
+     * out of the result. The postings of the index itself are not changed.
+     */
+    private PostingsList removeDeletedDocs(Index index, PostingsList result) {
+        if (result == null || !(index instanceof IndexSnapshot)) {
+            return result;
+        }
+        IndexSnapshot segmentedIndex = (IndexSnapshot)index;
+        if (segmentedIndex.getDeletedCount() == 0) {
+            return result;
+        }
+        PostingsList live = new PostingsList(result.size());
+        for (int i = 0; i < result.size(); i++) {
+            if (segmentedIndex.isLive(result.docID(i))) {
+                live.add(result, i);
             }
         }
+        return live.size() == 0 ? null : live;
+    }
+    
+    private PostingsList mergePostingsList(PostingsList plist1, PostingsList plist2) {
+        plist1.mergeUnordered(plist2);
         return plist1;
     }
     
     private HashMap<Integer, Double> mergeHashMapWithList(HashMap<Integer, Double> map, PostingsList list) {
-        ArrayList<PostingsEntry> entrylist = list.getList();
-        for (int i = entrylist.size() - 1; i >= 0; i--) {
-            PostingsEntry entry = entrylist.get(i);
-            map.put(entry.docID, entry.score + map.getOrDefault(entry.docID, 0.0));
+        for (int i = list.size() - 1; i >= 0; i--) {
+            map.put(list.docID(i), list.score(i) + map.getOrDefault(list.docID(i), 0.0));
         }
         return map;
     }
@@ -227,176 +283,146 @@ public class Searcher {
     /**
      * used for single word search
      */
-    private PostingsList singleWordSearch (Query query) {
-        String term = query.queryterm.get(0).term;
-        return index.getPostings(term);
+    private PostingsList singleWordSearch (Index index, Query query) {
+        PostingsCursor cursor = index.getCursor(query.queryterm.get(0).term);
+        if (cursor == null) {
+            return null;
+        }
+        PostingsList postingsList = new PostingsList(cursor.cost());
+        for (int doc = cursor.nextDoc(); doc != PostingsCursor.NO_MORE_DOCS; doc = cursor.nextDoc()) {
+            postingsList.add(doc);
+        }
+        return postingsList;
     }
     
     /**
      * used for intersection search
      */
-    private PostingsList intersectionSearch (Query query) {
-        ArrayList<PostingsList> pLists = new ArrayList();
-        
+    private PostingsList intersectionSearch (Index index, Query query) {
+        /**
+         * plan the intersection with the dictionary statistics: a missing
+         * term ends the search before any postings are read, and the cursor
+         * of the rarest term leads, the others only advance to its documents
+         * (skipping whole blocks on disk) and never decode any positions
+         */
+        final HashMap<String, TermStats> stats = new HashMap<>();
+        ArrayList<String> terms = new ArrayList<>();
         for (int i = 0; i < query.size(); i++) {
-            PostingsList temp = index.getPostings(query.queryterm.get(i).term);
+            String term = query.queryterm.get(i).term;
+            TermStats termStats = index.getTermStats(term);
             // if one of the terms does not exist, return null
-            if (temp == null) {
+            if (termStats == null) {
                 return null;
-            } else {
-                pLists.add(temp);
             }
-        } 
-        Collections.sort(pLists);
-        
-        PostingsList postingsList = new PostingsList();
-        PostingsList pl1 = new PostingsList();
-        PostingsList pl2 = null;
-        int p1 = 0, p2 = 0;
-        //copy the first posting list to pl1
-        for (int i = 0; i < pLists.get(0).size(); i++) {
-            pl1.addEntry(pLists.get(0).get(i));
+            stats.put(term, termStats);
+            terms.add(term);
         }
+        Collections.sort(terms, (t1, t2) -> Integer.compare(stats.get(t1).df, stats.get(t2).df));
         
-        for (int i = 0; i < pLists.size() - 1; i++) {
-            p1 = 0;
-            p2 = 0;
-            pl2 = pLists.get(i + 1);
-            postingsList.clear();
-            
-            while (true) {
-                if (pl1.get(p1).equals(pl2.get(p2))) {
-                    postingsList.addEntry(pl1.get(p1));
-                    if (p1 < pl1.size() - 1) {
-                        p1++;
-                    }
-                    if (p2 < pl2.size() - 1) {
-                        p2++;
-                    }
-                } else if (pl1.get(p1).docID > pl2.get(p2).docID) {
-                    if (p2 < pl2.size() - 1) {
-                        p2++;
-                    } else if (p1 < pl1.size() - 1){
-                        p1++;
-                    }
-                } else {
-                    if (p1 < pl1.size() - 1) {
-                        p1++;
-                    } else if (p2 < pl2.size() - 1) {
-                        p2++;
-                    }
-                }
-                if (p1 >= (pl1.size() - 1) && p2 >= (pl2.size() - 1)) {
-                    try {
-                        if (pl1.get(p1).equals(pl2.get(p2))) {
-                            postingsList.addEntry(pl1.get(p1));
-                        }
-                    } catch (Exception e) {
-                        System.err.println("Size1: " + pl1.size() + ", index1: " + p1);
-                        System.err.println("Size2: " + pl2.size() + ", index2: " + p2);
-                    }
-                    break;
-                }
-            }
-            //the terms do not exist in the same document, stop searching
-            if (postingsList.size() == 0) {
-                break;
-            }
-            
-            pl1.clear();
-            for (int j = 0; j < postingsList.size(); j++) {
-                pl1.addEntry(postingsList.get(j));
+        PostingsCursor[] cursors = new PostingsCursor[terms.size()];
+        for (int i = 0; i < terms.size(); i++) {
+            cursors[i] = index.getCursor(terms.get(i));
+            if (cursors[i] == null) {
+                return null;
             }
         }
+        PostingsList postingsList = new PostingsList();
+        for (int doc = nextCommonDoc(cursors, 0, cursors[0].nextDoc()); doc != PostingsCursor.NO_MORE_DOCS;
+             doc = nextCommonDoc(cursors, 0, cursors[0].nextDoc())) {
+            postingsList.add(doc);
+        }
         
-        if (postingsList.getList().isEmpty()) {
+        if (postingsList.size() == 0) {
             return null;
         } else {
             return postingsList;
         }
     }
     
+    /**
+     * Moves all cursors to the first document they all contain, starting
+     * at the current document of the lead cursor.
+     * @param lead The cursor with the fewest documents, which the others follow
+     * @param doc  The current document of the lead cursor
+     * @return The common document, or NO_MORE_DOCS
+     */
+    private int nextCommonDoc(PostingsCursor[] cursors, int lead, int doc) {
+        search:
+        while (doc != PostingsCursor.NO_MORE_DOCS) {
+            for (int i = 0; i < cursors.length; i++) {
+                if (i == lead) {
+                    continue;
+                }
+                int other = cursors[i].advance(doc);
+                if (other > doc) {
+                    doc = cursors[lead].advance(other);
+                    continue search;
+                }
+            }
+            return doc;
+        }
+        return doc;
+    }
+    
     /**
      * used for phrase search
      * @param query
      * @return 
      */
-    private PostingsList phraseSearch(Query query) {
+    private PostingsList phraseSearch(Index index, Query query) {
         PostingsList postingList = new PostingsList();
-        ArrayList<PostingsList> pLists = new ArrayList();
         
-        int p1, p2, pp1, pp2;
-        PostingsList pList1 = null;
-        PostingsList pList2 = null;
-        ArrayList<Integer> oList1 = null;
-        ArrayList<Integer> oList2 = null;
-        
-        pList1 = index.getPostings(query.queryterm.get(0).term);
-        //System.out.println("ready for query");
-        // iteratively compare different terms
-        for (int i = 0; i < query.size() - 1; i++) {
-            postingList.clear();
-            
-            p1 = 0;
-            p2 = 0;
-
-            pList2 = index.getPostings(query.queryterm.get(i + 1).term);
-            // compare two posting lists of two terms
-            while ((p1 < pList1.size()) && (p2 < pList2.size())) {
-                //System.out.println("pos1");
-                if (pList1.get(p1).docID == pList2.get(p2).docID) {
-                    
-                    ArrayList<Integer> l = new ArrayList();
-                    //initial point to the start position of two offset lists
-                    pp1 = 0; 
-                    pp2 = 0; 
-                    
-                    oList1 = pList1.get(p1).getOffsets();
-                    oList2 = pList2.get(p2).getOffsets();
-                    
-                    // compare the two offset list 
-                    while (pp1 < oList1.size()) {
-                        //System.out.println("pos2");
-                        pp2 = 0;
-                        while (pp2 < oList2.size()) {
-                            if ((oList2.get(pp2) - oList1.get(pp1)) == 1) {
-                                //System.out.println("a result found");
-                                l.add(oList2.get(pp2));
-                                break;
-                            }
-                            pp2 ++;
-                        }
-                        pp1 ++;
-                    }
-                    //System.out.println("pos2");
-                    
-                    if(!l.isEmpty()) {
-                        //System.out.println("a result found");
-                        postingList.addEntry(new PostingsEntry(pList2.get(p2).docID, l));
-                    }
-        
-                    p1 ++;
-                    p2 ++;
-                } else {
-                    if (pList1.get(p1).docID < pList2.get(p2).docID) {
-                        p1 ++;
-                    } else {
-                        p2 ++;
-                    }
-                }
+        PostingsCursor[] cursors = new PostingsCursor[query.size()];
+        int lead = 0;
+        for (int i = 0; i < query.size(); i++) {
+            cursors[i] = index.getCursor(query.queryterm.get(i).term);
+            if (cursors[i] == null) {
+                return null;
             }
-            pList1 = new PostingsList();
-            for (int k = 0; k < postingList.size(); k++) {
-                pList1.addEntry(postingList.get(k));
+            if (cursors[i].cost() < cursors[lead].cost()) {
+                lead = i;
+            }
+        }
+        // only the documents holding all terms have their positions decoded
+        for (int doc = nextCommonDoc(cursors, lead, cursors[lead].nextDoc()); doc != PostingsCursor.NO_MORE_DOCS;
+             doc = nextCommonDoc(cursors, lead, cursors[lead].nextDoc())) {
+            // the positions of the current term that end the phrase so far
+            int[] l = cursors[0].positions();
+            for (int i = 1; i < cursors.length && l.length > 0; i++) {
+                l = followingPositions(l, cursors[i].positions());
+            }
+            if (l.length > 0) {
+                postingList.add(doc, l);
             }
-            //System.out.println("pos3");
         }
-        //System.out.println("pos4");
         
         return postingList;
     }
     
-    private PostingsList rankedSearch(Query query, RankingType rankingType) {
+    /**
+     * Returns the positions in oList2 that directly follow a position in
+     * oList1. Both lists are sorted.
+     */
+    private int[] followingPositions(int[] oList1, int[] oList2) {
+        int[] l = new int[Math.min(oList1.length, oList2.length)];
+        int n = 0;
+        int pp1 = 0, pp2 = 0;
+        while (pp1 < oList1.length && pp2 < oList2.length) {
+            int diff = oList2[pp2] - oList1[pp1];
+            if (diff == 1) {
+                l[n++] = oList2[pp2];
+                pp1++;
+                pp2++;
+            } else if (diff > 1) {
+                pp1++;
+            } else {
+                pp2++;
+            }
+        }
+        return n == l.length ? l : Arrays.copyOf(l, n);
+    }
+    
+    private PostingsList rankedSearch(Index index, Query query, RankingType rankingType) {
         PostingsList postingsList = new PostingsList();
         
         ArrayList<String> uniqueToken = new ArrayList();
@@ -404,8 +430,6 @@ public class Searcher {
         // all the docs to be ranked, I use haspmap to easily get an entry reference from the container
         HashMap<Integer, PostingsEntry> entrys = new HashMap();
         
-        PostingsList tList = null;     
-        
         // iterate in terms of the key words in the query vector
         for (int i = 0; i < query.size(); i++) {
             /** 
@@ -417,33 +441,33 @@ public class Searcher {
             if (uniqueToken.contains(curToken)) {
                 continue;
             }
-            tList = index.getPostings(curToken);
+            // the document frequency comes from the dictionary, so a term
+            // that is not in the index is never looked up in the data file
+            TermStats termStats = index.getTermStats(curToken);
+            PostingsCursor cursor = termStats == null ? null : index.getCursor(curToken);
+            if (cursor == null) {
+                uniqueToken.add(curToken);
+                continue;
+            }
             
             // compute tf and idf of the query vector
 //            int tf_query = query.getTfInQuery(curToken);
             // in the feedback version, we take the weight of the term into consideration
             double tf_query =  query.getTfInQuery(curToken) *  weightOfToken;
 //            System.out.println(curToken + ": " + weightOfToken);
-            double idf;
-            if (tList == null) {
-                // if the token does not exist, set idf equal to zero
-                idf = 0;
-            } else {
-                // idfs of query vector and doc vector are same
-                idf = Math.log(index.docNames.size() / tList.size());
-            }
+            // idfs of query vector and doc vector are same
+            double idf = Math.log(Index.docNames.size() / termStats.df);
             
             //System.out.println(curToken + ": " + idf);
             
-            for (int j = tList.size() - 1; j >= 0; j--) {
-                PostingsEntry t_entry = tList.get(j);
-                if (entrys.containsKey(t_entry.docID)) {
-                    entrys.get(t_entry.docID).score += 
-                            tf_query * idf * t_entry.getTermFrequency();
-                } else {
-                    t_entry.score += tf_query * idf * t_entry.getTermFrequency();
-                    entrys.put(t_entry.docID, t_entry);
+            // only the term frequencies are read, never the positions
+            for (int doc = cursor.nextDoc(); doc != PostingsCursor.NO_MORE_DOCS; doc = cursor.nextDoc()) {
+                PostingsEntry t_entry = entrys.get(doc);
+                if (t_entry == null) {
+                    t_entry = new PostingsEntry(doc);
+                    entrys.put(doc, t_entry);
                 }
+                t_entry.score += tf_query * idf * cursor.freq();
             }
             uniqueToken.add(curToken);
         }
@@ -462,10 +486,10 @@ public class Searcher {
 //            entrys.get(docID).score = eFactor * (entrys.get(docID).score) + (1 - eFactor) * pageranks.get(docID);
         }
         
-        //convert Hashmap to ArrayList and sort the documents based on the scores
-        ArrayList<PostingsEntry> list = new ArrayList(entrys.values());
-//        Collections.sort(list);
-        postingsList.setEntrys(list);
+        //convert Hashmap to a postings list, the documents are sorted by search()
+        for (PostingsEntry entry: entrys.values()) {
+            postingsList.add(entry.docID, entry.score);
+        }
         
         //save the top 50 ranked file names to files (for task 2.4)
         //saveFile(list);
@@ -504,14 +528,12 @@ public class Searcher {
         PostingsList result = new PostingsList();
         int i = 0, j = 0;
         
-        ArrayList<PostingsEntry> pp1 = p1.getList();
-        ArrayList<PostingsEntry> pp2 = p2.getList();
-        int p1_size = pp1.size();
-        int p2_size = pp2.size();
+        int p1_size = p1.size();
+        int p2_size = p2.size();
         
         while(true){
-            PostingsEntry entry1 = pp1.get(i);
-            PostingsEntry entry2 = pp2.get(j);
+            PostingsEntry entry1 = p1.get(i);
+            PostingsEntry entry2 = p2.get(j);
             if (entry1.docID == entry2.docID) {                
                 PostingsEntry entry = new PostingsEntry(entry1.docID, entry1.score + entry2.score);              
                 result.addEntry(entry);  
@@ -0,0 +1,326 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges any number of sorted segments into one in a single sequential
+ * pass. Every input data file is read from start to end, a priority
+ * queue picks the smallest term among the inputs, and the postings of a
+ * term found in several inputs are concatenated without decoding their
+ * offsets (see PostingsCodec.concatenate). The offsets are copied from
+ * the positions files of the inputs, which are read in term order too. The inputs must cover
+ * consecutive docID ranges and be given in docID order.
+ *
+ * Merges run on a small pool of background threads, so indexing can go
+ * on while segments are merged. At most maxConcurrentMerges merges run at
+ * a time, the others wait in line. Background merges can be throttled to
+ * a maximum write rate, so they do not take all the disk bandwidth from
+ * indexing and searching.
+ *
+ * @author Zehua
+ */
+public class SegmentMerger {
+
+    /** Size of the read buffer of every input. */
+    static final int READ_BUFFER_SIZE = 1 << 20;
+
+    /** Number of merges run at the same time by default. */
+    static final int DEFAULT_MAX_CONCURRENT_MERGES = 2;
+
+    /** Bytes written between two calls to the rate limiter. */
+    static final int THROTTLE_CHUNK = 1 << 18;
+
+    final int maxConcurrentMerges;
+
+    private final ExecutorService executor;
+
+    /** Limits the write rate of throttled merges, or null for no limit. */
+    private volatile RateLimiter rateLimiter = null;
+
+    /** Merges submitted but not finished yet. */
+    private final AtomicInteger pendingMerges = new AtomicInteger();
+
+    private final AtomicInteger mergesDone = new AtomicInteger();
+    private final AtomicLong bytesMerged = new AtomicLong();
+    private final AtomicLong mergeMillis = new AtomicLong();
+
+
+    /**
+     * Reads the records of the data file of a segment in file order,
+     * which is term order.
+     */
+    static class SegmentReader {
+        final PersistentHashedIndex segment;
+        private final DataInputStream in;
+        private long recordsLeft;
+
+        /** The current record, including its length field. */
+        byte[] record;
+        /** The current record after the term, and its term. */
+        ByteBuffer body;
+        String term;
+
+        SegmentReader(PersistentHashedIndex segment) throws IOException {
+            this.segment = segment;
+            this.recordsLeft = segment.termCount;
+            File dataFile = segment.file(PersistentHashedIndex.DATA_FNAME);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataFile), READ_BUFFER_SIZE));
+            if (in.readInt() != PersistentHashedIndex.FORMAT_MAGIC || in.readInt() != PersistentHashedIndex.FORMAT_VERSION) {
+                in.close();
+                throw new IOException(dataFile + " is not in the current index format");
+            }
+        }
+
+        /**
+         * Moves to the next record.
+         * @return false when there are no more records
+         */
+        boolean next() throws IOException {
+            if (recordsLeft == 0) {
+                in.close();
+                return false;
+            }
+            recordsLeft--;
+            int size = in.readInt();
+            record = new byte[4 + size];
+            ByteBuffer.wrap(record).putInt(size);
+            in.readFully(record, 4, size);
+            body = ByteBuffer.wrap(record, 4, size).slice();
+            term = PostingsCodec.readTerm(body);
+            return true;
+        }
+
+        /** Closes the data file, also if the reader is at its end already. */
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written through it
+            }
+        }
+    }
+
+    private static final Comparator<SegmentReader> TERM_ORDER = (a, b) -> {
+        int c = a.term.compareTo(b.term);
+        return c != 0 ? c : Integer.compare(a.segment.docBase, b.segment.docBase);
+    };
+
+
+    public SegmentMerger() {
+        this(DEFAULT_MAX_CONCURRENT_MERGES);
+    }
+
+    public SegmentMerger(int maxConcurrentMerges) {
+        this.maxConcurrentMerges = maxConcurrentMerges;
+        final AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(maxConcurrentMerges, r -> {
+            Thread t = new Thread(r, "segment-merger-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Limits the total write rate of throttled merges.
+     * @param mbPerSec The limit in MB/s, or 0 for no limit
+     */
+    public void setMaxMergeRate(double mbPerSec) {
+        rateLimiter = mbPerSec > 0 ? new RateLimiter(mbPerSec) : null;
+    }
+
+    /**
+     * Runs a task on a merge thread.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        pendingMerges.incrementAndGet();
+        return executor.submit(() -> {
+            try {
+                return task.call();
+            } finally {
+                synchronized (pendingMerges) {
+                    pendingMerges.decrementAndGet();
+                    pendingMerges.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all submitted merges are done.
+     */
+    public void waitForMerges() {
+        synchronized (pendingMerges) {
+            while (pendingMerges.get() > 0) {
+                try {
+                    pendingMerges.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the segments at full speed.
+     */
+    public PersistentHashedIndex merge(List<PersistentHashedIndex> inputs, String directory) throws IOException {
+        return merge(inputs, directory, false);
+    }
+
+    /**
+     * Merges the segments into a new segment in the given directory.
+     * The inputs are left untouched.
+     *
+     * @param inputs Segments covering consecutive docID ranges, in docID order
+     * @param throttled Whether to keep to the rate set by setMaxMergeRate
+     * @return The new segment, mapped and ready for searching
+     */
+    public PersistentHashedIndex merge(List<PersistentHashedIndex> inputs, String directory,
+                                       boolean throttled) throws IOException {
+        RateLimiter limiter = throttled ? rateLimiter : null;
+        long startTime = System.currentTimeMillis();
+        new File(directory).mkdirs();
+        PersistentHashedIndex first = inputs.get(0);
+        PersistentHashedIndex last = inputs.get(inputs.size() - 1);
+        PersistentHashedIndex merged = new PersistentHashedIndex(directory);
+        merged.docBase = first.docBase;
+        merged.docCount = last.docBase + last.docCount - first.docBase;
+
+        PriorityQueue<SegmentReader> queue = new PriorityQueue<SegmentReader>(inputs.size(), TERM_ORDER);
+        // every reader opened, wherever it is when the merge ends
+        List<SegmentReader> readers = new ArrayList<SegmentReader>(inputs.size());
+        List<PersistentHashedIndex.Entry> entries = new ArrayList<PersistentHashedIndex.Entry>();
+        long bytesRead = 0;
+        long bytesWritten;
+        boolean committed = false;
+        try {
+            for (PersistentHashedIndex segment: inputs) {
+                SegmentReader reader = new SegmentReader(segment);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+                bytesRead += segment.file(PersistentHashedIndex.DATA_FNAME).length() +
+                    segment.file(PersistentHashedIndex.POSITIONS_FNAME).length();
+            }
+
+            BufferedChannelWriter writer = merged.startDataFile();
+            List<SegmentReader> parts = new ArrayList<SegmentReader>();
+            long unthrottled = 0;
+            while (!queue.isEmpty()) {
+                parts.clear();
+                parts.add(queue.poll());
+                String term = parts.get(0).term;
+                while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                    parts.add(queue.poll());
+                }
+
+                ByteBuffer[] bodies = new ByteBuffer[parts.size()];
+                ByteBuffer[] positions = new ByteBuffer[parts.size()];
+                int[] docBases = new int[parts.size()];
+                for (int i = 0; i < parts.size(); i++) {
+                    SegmentReader reader = parts.get(i);
+                    bodies[i] = reader.body;
+                    positions[i] = reader.segment.readPositions(reader.body);
+                    docBases[i] = reader.segment.docBase;
+                }
+                PostingsCodec.Encoded encoded = PostingsCodec.concatenate(term, bodies, positions, docBases,
+                                                                          merged.docBase,
+                                                                          merged.positionsWriter.position());
+                entries.add(merged.new Entry(term, writer.position(), encoded.record.length,
+                                             PostingsCodec.readStats(encoded.record)));
+                writer.write(encoded.record);
+                merged.positionsWriter.write(encoded.positions);
+                unthrottled += encoded.record.length + encoded.positions.length;
+                if (limiter != null && unthrottled >= THROTTLE_CHUNK) {
+                    limiter.pause(unthrottled);
+                    unthrottled = 0;
+                }
+
+                for (SegmentReader reader: parts) {
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+            }
+            writer.flush();
+            merged.positionsWriter.flush();
+            bytesWritten = writer.position() + merged.positionsWriter.position() +
+                merged.writeDictionary(entries);
+            DocInfo.write(merged.nextFile(PersistentHashedIndex.DOCINFO_FNAME), merged.docBase, merged.docCount);
+            merged.commit();
+            committed = true;
+        } finally {
+            for (SegmentReader reader: readers) {
+                reader.close();
+            }
+            if (!committed) {
+                // closes the files of the merged segment and removes its directory;
+                // the inputs are untouched
+                merged.delete();
+            }
+        }
+        merged.readDocInfo();
+        merged.mapFiles();
+
+        long elapsedTime = Math.max(1, System.currentTimeMillis() - startTime);
+        mergesDone.incrementAndGet();
+        bytesMerged.addAndGet(bytesRead);
+        mergeMillis.addAndGet(elapsedTime);
+        System.err.println(String.format("Merged %d segments (%d terms, docs %d-%d) into %s: " +
+                                         "%.1f MB read, %.1f MB written in %.1f seconds (%.1f MB/s), %d merges pending",
+                                         inputs.size(), entries.size(), merged.docBase,
+                                         merged.docBase + merged.docCount - 1, directory,
+                                         bytesRead / 1e6, bytesWritten / 1e6, elapsedTime / 1000.0,
+                                         bytesRead / 1e3 / elapsedTime, pendingMerges.get() - 1));
+        return merged;
+    }
+
+    /** Number of merges submitted but not finished. */
+    public int getPendingMerges() {
+        return pendingMerges.get();
+    }
+
+    public int getMergesDone() {
+        return mergesDone.get();
+    }
+
+    /** Bytes of postings read by all finished merges. */
+    public long getBytesMerged() {
+        return bytesMerged.get();
+    }
+
+    /** Average merge throughput so far in MB/s. */
+    public double getThroughput() {
+        long millis = mergeMillis.get();
+        return millis == 0 ? 0 : bytesMerged.get() / 1e3 / millis;
+    }
+
+    /**
+     * Waits for the running merges to finish and stops the merge threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * An index made of immutable segments. Every segment is a
+ * PersistentHashedIndex in its own subdirectory, holding the documents
+ * docBase .. docBase + docCount - 1, and the segments cover increasing
+ * docID ranges. A search looks the term up in every segment and runs
+ * the cursors of the parts one after the other.
+ *
+ * New documents are collected in a main-memory hash map and written as
+ * one more segment by flushSegment, so documents can be added without
+ * rewriting the segments already on disk. Documents are removed by
+ * marking their docIDs deleted; they stay in their segments, but the
+ * Searcher leaves them out of the results.
+ *
+ * Searches do not see the index while it changes: they run on the last
+ * published IndexSnapshot. A refresh publishes frozen copies of the
+ * postings lists in the map together with the deletes, without writing a
+ * segment, so the documents indexed so far become searchable and deletes
+ * become visible together with the documents that replace them. The map
+ * is only written to a segment by cleanup, or by subclasses that limit
+ * its size. A snapshot is also published whenever the segment list
+ * changes.
+ *
+ * @author Zehua
+ */
+public class SegmentedIndex implements Index {
+
+    /** Segments are stored in directories named SEGMENT_PREFIX + number. */
+    static final String SEGMENT_PREFIX = "segment";
+
+    /**
+     * The file holding the deleted docIDs, followed by their CRC32C. It is
+     * replaced atomically before every new segment is committed.
+     */
+    static final String DELETES_FNAME = "deletedDocs";
+
+    /** The directory holding the segment directories. */
+    final String directory;
+
+    /**
+     * The segments in docID order. The list is never changed, a new list
+     * is published instead, so searches can use the list they got without
+     * locking while segments are added or replaced.
+     */
+    volatile List<PersistentHashedIndex> segments = Collections.emptyList();
+
+    /** Guards changes of segments. */
+    final Object segmentsLock = new Object();
+
+    /**
+     * The deleted docIDs, the complement of the live documents, including
+     * deletes not published yet. Changed in place with segmentsLock held,
+     * and copied for a snapshot only when there were deletes since the
+     * last one.
+     */
+    private BitSet deletedDocs = new BitSet();
+
+    /** True if documents were deleted since deletedDocs was last copied for a snapshot. */
+    private boolean deletesChanged = false;
+
+    /** True if documents were deleted since deletedDocs was last written to disk. */
+    private boolean deletesUnsaved = false;
+
+    /** The view of the index that searches run on. */
+    private volatile IndexSnapshot snapshot = IndexSnapshot.EMPTY;
+
+    /** The decoded postings of the terms searched most, shared by all segments. */
+    final PostingsCache postingsCache = new PostingsCache();
+
+    /** The number of the next segment directory. */
+    private final AtomicInteger nextSegment = new AtomicInteger();
+
+    /** The documents not written to a segment yet. */
+    HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+
+    /**
+     * The first and the last document of the map, counting the documents
+     * without tokens, so that the next segment covers them too.
+     */
+    int firstDocID = -1;
+    int lastDocID = -1;
+
+    /** The terms of the map that got documents since the last refresh. */
+    private ArrayList<String> changedTerms = new ArrayList<String>();
+
+    /** The last document of the map in the snapshot. */
+    private int publishedDocID = -1;
+
+
+    /**
+     * Opens the segments in the subdirectories of ./index.
+     */
+    public SegmentedIndex() {
+        this(PersistentHashedIndex.INDEXDIR + File.separator);
+    }
+
+    public SegmentedIndex(String directory) {
+        this.directory = directory.endsWith(File.separator) ? directory : directory + File.separator;
+        new File(this.directory).mkdirs();
+        openSegments();
+        try {
+            readDeletes();
+        } catch (IOException e) {
+            // without the deletes, old versions of changed files would be live again
+            System.err.println("The deletes in " + this.directory + " are damaged, the index has to be rebuilt: " +
+                               e.getMessage());
+            deleteSegments();
+        }
+        publish(snapshot.buffer, (BitSet)deletedDocs.clone());
+    }
+
+    /**
+     * Returns the deletes for a new snapshot: a copy of deletedDocs if
+     * there were deletes since the last copy, or else the deletes of the
+     * current snapshot. Called with segmentsLock held.
+     */
+    private BitSet currentDeletes() {
+        if (!deletesChanged) {
+            return snapshot.deletedDocs;
+        }
+        deletesChanged = false;
+        return (BitSet)deletedDocs.clone();
+    }
+
+    /**
+     * Publishes a snapshot of the current segment list with the given
+     * copy of the map and deletes. Called with segmentsLock held, or
+     * before the index is shared.
+     */
+    private void publish(Map<String,PostingsList> buffer, BitSet visibleDeletes) {
+        snapshot = new IndexSnapshot(segments, buffer, visibleDeletes, snapshot.getGeneration() + 1);
+    }
+
+    /**
+     * Opens the segments left in the directory by an earlier run.
+     */
+    private void openSegments() {
+        String[] names = new File(directory).list();
+        if (names == null) {
+            return;
+        }
+        List<PersistentHashedIndex> opened = new ArrayList<PersistentHashedIndex>();
+        for (String name: names) {
+            if (name.startsWith(SEGMENT_PREFIX)) {
+                int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+                nextSegment.set(Math.max(nextSegment.get(), number + 1));
+                PersistentHashedIndex segment = new PersistentHashedIndex(directory + name);
+                if (!segment.hasCommit()) {
+                    if (!segment.damaged) {
+                        // the writer died before the first commit of the segment
+                        segment.delete();
+                    }
+                    continue;
+                }
+                segment.mapFiles();
+                segment.postingsCache = postingsCache;
+                opened.add(segment);
+            }
+        }
+        Collections.sort(opened, Comparator.comparingInt(s -> s.docBase));
+        segments = Collections.unmodifiableList(opened);
+    }
+
+    /**
+     * Removes all segments, before the collection is indexed from scratch.
+     */
+    void deleteSegments() {
+        synchronized (segmentsLock) {
+            for (PersistentHashedIndex segment: segments) {
+                segment.delete();
+            }
+            segments = Collections.emptyList();
+            deletedDocs = new BitSet();
+            deletesChanged = false;
+            deletesUnsaved = false;
+            publishedDocID = -1;
+            publish(Collections.<String,PostingsList>emptyMap(), new BitSet());
+            new File(directory, DELETES_FNAME).delete();
+            new File(directory, DELETES_FNAME + ".tmp").delete();
+        }
+    }
+
+    /**
+     * Marks a document as deleted. Its postings stay in its segment, and
+     * searches see the delete after the next refresh.
+     */
+    public void deleteDocument(int docID) {
+        synchronized (segmentsLock) {
+            deletedDocs.set(docID);
+            deletesChanged = true;
+            deletesUnsaved = true;
+        }
+    }
+
+    /**
+     * Returns false if the document has been deleted, even if the delete
+     * is not visible to searches yet.
+     */
+    public boolean isLive(int docID) {
+        synchronized (segmentsLock) {
+            return !deletedDocs.get(docID);
+        }
+    }
+
+    /** Number of deleted documents. */
+    public int getDeletedCount() {
+        synchronized (segmentsLock) {
+            return deletedDocs.cardinality();
+        }
+    }
+
+    @Override
+    public long getGeneration() {
+        return snapshot.getGeneration();
+    }
+
+    /**
+     * The segments and deletes as of the last refresh, or the last change
+     * of the segment list.
+     */
+    @Override
+    public IndexSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Publishes the documents collected so far together with the deletes
+     * made since the last refresh. Only the postings lists of the changed
+     * terms are copied, as snapshots sharing their arrays: later documents
+     * are only appended after the end of a snapshot. Called between
+     * documents.
+     */
+    @Override
+    public void refresh() {
+        Map<String,PostingsList> buffer = snapshot.buffer;
+        if (!changedTerms.isEmpty()) {
+            HashMap<String,PostingsList> frozen = new HashMap<String,PostingsList>(buffer);
+            for (String term: changedTerms) {
+                frozen.put(term, index.get(term).snapshot());
+            }
+            changedTerms = new ArrayList<String>();
+            buffer = frozen;
+        }
+        publishedDocID = lastDocID;
+        synchronized (segmentsLock) {
+            if (buffer != snapshot.buffer || deletesChanged) {
+                publish(buffer, currentDeletes());
+            }
+        }
+    }
+
+    /** The postings cache of the segments, with its hit and miss counts. */
+    public PostingsCache getPostingsCache() {
+        return postingsCache;
+    }
+
+    /**
+     * Reads the deletes written by writeDeletes, and checks their checksum.
+     *
+     * @throws IOException if the file is damaged
+     */
+    private void readDeletes() throws IOException {
+        File file = new File(directory, DELETES_FNAME);
+        if (!file.exists()) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length < 12) {
+            throw new IOException("truncated " + file);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 8);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (buf.getLong(bytes.length - 8) != crc.getValue()) {
+            throw new IOException("bad checksum of " + file);
+        }
+        long[] words = new long[buf.getInt()];
+        if (bytes.length != 4 + 8 * words.length + 8) {
+            throw new IOException(file + " has " + bytes.length + " bytes, expected " + (12 + 8 * words.length));
+        }
+        for (int i = 0; i < words.length; i++) {
+            words[i] = buf.getLong();
+        }
+        deletedDocs = BitSet.valueOf(words);
+        // docIDs past the segments are given out again to new documents
+        deletedDocs.clear(segmentsEnd(), Math.max(segmentsEnd(), deletedDocs.length()));
+    }
+
+    /**
+     * Replaces the file of deletes on disk, if there were deletes since it
+     * was last written.
+     */
+    void writeDeletes() throws IOException {
+        long[] words;
+        synchronized (segmentsLock) {
+            if (!deletesUnsaved) {
+                return;
+            }
+            words = deletedDocs.toLongArray();
+            deletesUnsaved = false;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + 8 * words.length + 8);
+        buf.putInt(words.length);
+        for (long word: words) {
+            buf.putLong(word);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putLong(crc.getValue());
+        try {
+            PersistentHashedIndex.replaceAtomically(new File(directory, DELETES_FNAME), buf.array());
+        } catch (IOException e) {
+            synchronized (segmentsLock) {
+                deletesUnsaved = true;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The docID following the last document in the segments.
+     */
+    public int segmentsEnd() {
+        List<PersistentHashedIndex> current = segments;
+        if (current.isEmpty()) {
+            return 0;
+        }
+        PersistentHashedIndex last = current.get(current.size() - 1);
+        return last.docBase + last.docCount;
+    }
+
+    String newSegmentDirectory() {
+        return directory + String.format("%s%06d", SEGMENT_PREFIX, nextSegment.getAndIncrement());
+    }
+
+    /**
+     * Publishes a new segment list with the segment added at the end.
+     */
+    void addSegment(PersistentHashedIndex segment) {
+        segment.postingsCache = postingsCache;
+        synchronized (segmentsLock) {
+            List<PersistentHashedIndex> updated = new ArrayList<PersistentHashedIndex>(segments);
+            updated.add(segment);
+            segments = Collections.unmodifiableList(updated);
+            // the documents of the map are in the segment now
+            publish(Collections.<String,PostingsList>emptyMap(), currentDeletes());
+        }
+    }
+
+    /**
+     * Publishes a new segment list in which the inputs are replaced by
+     * the segment they were merged into, and deletes their files.
+     * Searches still running on the old list keep their mappings.
+     */
+    void replaceSegments(List<PersistentHashedIndex> inputs, PersistentHashedIndex merged) {
+        merged.postingsCache = postingsCache;
+        synchronized (segmentsLock) {
+            List<PersistentHashedIndex> updated = new ArrayList<PersistentHashedIndex>(segments);
+            int pos = updated.indexOf(inputs.get(0));
+            updated.removeAll(inputs);
+            updated.add(pos, merged);
+            segments = Collections.unmodifiableList(updated);
+            // a merge changes no documents, so the visible documents stay as they are
+            publish(snapshot.buffer, snapshot.deletedDocs);
+        }
+        for (PersistentHashedIndex segment: inputs) {
+            segment.delete();
+        }
+    }
+
+    /**
+     * A new docID, which the next segment covers even if the document has
+     * no tokens.
+     */
+    @Override
+    public void addDocument(int docID) {
+        if (docID != lastDocID) {
+            startDocument(docID);
+        }
+    }
+
+    /**
+     * Called for every new document, by addDocument or by its first token.
+     */
+    void startDocument(int docID) {
+        if (docID < segmentsEnd()) {
+            // indexing from scratch has to remove the segments explicitly
+            throw new IllegalStateException("Document " + docID + " is already in the segments, which end at " +
+                                            segmentsEnd() + "; call deleteSegments to index from scratch");
+        }
+        if (firstDocID < 0) {
+            firstDocID = docID;
+        }
+        lastDocID = docID;
+    }
+
+    @Override
+    public void insert( String token, int docID, int offset ) {
+        if (docID != lastDocID) {
+            startDocument(docID);
+        }
+        postingsForInsert(token, docID).addDocOff(docID, offset);
+    }
+
+    /**
+     * Returns the postings list in the map that the token is added to,
+     * empty for a new term, and notes the terms that get their first
+     * document since the last refresh.
+     */
+    PostingsList postingsForInsert( String token, int docID ) {
+        PostingsList postingList = index.get(token);
+        if (postingList == null) {
+            postingList = new PostingsList();
+            index.put(token, postingList);
+        }
+        if (postingList.lastDocID() != docID && postingList.lastDocID() <= publishedDocID) {
+            changedTerms.add(token);
+        }
+        return postingList;
+    }
+
+    /**
+     * Writes the deletes, then the main-memory map to a new segment, and
+     * empties the map. The deletes go first: after a crash between the
+     * two, the new version of a changed file is missing rather than live
+     * next to the old one, and the next incremental run indexes it again.
+     *
+     * @return The new segment, or null if there was nothing to write
+     */
+    PersistentHashedIndex flushSegment() {
+        try {
+            writeDeletes();
+        } catch (IOException e) {
+            // the documents stay in the map
+            e.printStackTrace();
+            return null;
+        }
+        if (firstDocID < 0) {
+            // no documents since the last segment
+            return null;
+        }
+        String name = newSegmentDirectory();
+        new File(name).mkdirs();
+        PersistentHashedIndex segment = new PersistentHashedIndex(name);
+        segment.index = index;
+        segment.docBase = firstDocID;
+        segment.docCount = lastDocID - firstDocID + 1;
+        segment.writeIndex();
+        segment.index = new HashMap<String,PostingsList>();
+        segment.mapFiles();
+        index = new HashMap<String,PostingsList>();
+        changedTerms = new ArrayList<String>();
+        addSegment(segment);
+        firstDocID = -1;
+        return segment;
+    }
+
+    /**
+     * Returns the postings of the term in the current snapshot.
+     */
+    @Override
+    public PostingsList getPostings( String token ) {
+        return snapshot.getPostings(token);
+    }
+
+    @Override
+    public PostingsCursor getCursor( String token ) {
+        return snapshot.getCursor(token);
+    }
+
+    @Override
+    public TermStats getTermStats( String token ) {
+        return snapshot.getTermStats(token);
+    }
+
+    @Override
+    public void cleanup() {
+        System.err.print( "Writing the new documents to a segment..." );
+        flushSegment();
+        refresh();
+        lastDocID = -1;
+        System.err.println( "done! " + segments.size() + " segments in " + directory +
+                            ", " + getDeletedCount() + " deleted documents" );
+    }
+}
@@ -133,6 +133,10 @@ public class SpellChecker {
         // YOUR CODE HERE
         //
         String[] ret = null;
+        if (kgIndex == null) {
+            // no k-gram index to find candidates in
+            return ret;
+        }
         if (query.size() == 1) {
             ret = singleWordCheck(query, limit);
             System.err.println("Single-word spelling correction");
@@ -196,7 +200,7 @@ public class SpellChecker {
                         // Now filter the survived terms with edit distance
                         if (editDistance(qterm, alter_term) <= MAX_EDIT_DISTANCE) {
                             // I use the number of documents that this term occurs in as its score
-                            corrections.add(new KGramStat(alter_term, index.getPostings(alter_term).size()));
+                            corrections.add(new KGramStat(alter_term, index.getTermStats(alter_term).df));
 //                            System.out.println("Term: " + alter_term + ", Jaccard coefficient: " 
 //                                + jaccard(sizeA, entry.numOfKGrams, intersection)
 //                            + ", Edit distance: " + editDistance(qterm, alter_term)
@@ -344,7 +348,7 @@ public class SpellChecker {
                 continue;
             }
             
-            corrections.add(new MultiWordCorrection(words, tList.getList()));
+            corrections.add(new MultiWordCorrection(words, tList.toEntries()));
         }
         
         // Sort the combinations based on the number of search results, and cut off some combinations
@@ -370,7 +374,7 @@ public class SpellChecker {
     //                    ArrayList<String> tWords = tpCorrection.getWordsCopy();
     //                    tWords.add(tGramList.get(k).getToken());
                         String tToken = tGramList.get(k).getToken();
-                        tCorrections.add(tpCorrection.getNewCorrection(tToken, index.getPostings(tToken).getList()));
+                        tCorrections.add(tpCorrection.getNewCorrection(tToken, index.getPostings(tToken).toEntries()));
                     }
 
                 }
@@ -404,6 +408,16 @@ public class SpellChecker {
     }
     
     
+    /**
+     * Appends the ith posting of from to the result of an intersection,
+     * unless it is already the last one there.
+     */
+    private void addLast(PostingsList result, PostingsList from, int i) {
+        if (result.size() == 0 || result.docID(result.size() - 1) != from.docID(i)) {
+            result.add(from, i);
+        }
+    }
+
     /**
      * used for intersection search
      */
@@ -427,7 +441,7 @@ public class SpellChecker {
         int p1 = 0, p2 = 0;
         //copy the first posting list to pl1
         for (int i = 0; i < pLists.get(0).size(); i++) {
-            pl1.addEntry(pLists.get(0).get(i));
+            pl1.add(pLists.get(0), i);
         }
         
         for (int i = 0; i < pLists.size() - 1; i++) {
@@ -437,15 +451,15 @@ public class SpellChecker {
             postingsList.clear();
             
             while (true) {
-                if (pl1.get(p1).equals(pl2.get(p2))) {
-                    postingsList.addEntry(pl1.get(p1));
+                if (pl1.docID(p1) == pl2.docID(p2)) {
+                    addLast(postingsList, pl1, p1);
                     if (p1 < pl1.size() - 1) {
                         p1++;
                     }
                     if (p2 < pl2.size() - 1) {
                         p2++;
                     }
-                } else if (pl1.get(p1).docID > pl2.get(p2).docID) {
+                } else if (pl1.docID(p1) > pl2.docID(p2)) {
                     if (p2 < pl2.size() - 1) {
                         p2++;
                     } else if (p1 < pl1.size() - 1){
@@ -459,8 +473,8 @@ public class SpellChecker {
                     }
                 }
                 if (p1 >= (pl1.size() - 1) && p2 >= (pl2.size() - 1)) {
-                    if (pl1.get(p1).equals(pl2.get(p2))) {
-                        postingsList.addEntry(pl1.get(p1));
+                    if (pl1.docID(p1) == pl2.docID(p2)) {
+                        addLast(postingsList, pl1, p1);
                     }
                     break;
                 }
@@ -472,11 +486,11 @@ public class SpellChecker {
             
             pl1.clear();
             for (int j = 0; j < postingsList.size(); j++) {
-                pl1.addEntry(postingsList.get(j));
+                pl1.add(postingsList, j);
             }
         }
         
-        if (postingsList.getList().isEmpty()) {
+        if (postingsList.size() == 0) {
             return null;
         } else {
             return postingsList;
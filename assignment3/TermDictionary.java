@@ -0,0 +1,125 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int IDs to terms, in the order they are first added, so
+ * the main-memory structures can keep their data in arrays indexed by
+ * term ID instead of in hash maps keyed by the term strings. Every term
+ * string is stored once, by the dictionary.
+ *
+ * The table uses open addressing with linear probing. It is not
+ * thread-safe: readers that run while terms are added work on a copy.
+ *
+ * @author Zehua
+ */
+public class TermDictionary {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /** The terms by ID. */
+    private String[] terms;
+
+    /** The hash table: term ID + 1 per slot, 0 for an empty slot. */
+    private int[] table;
+
+    private int size = 0;
+
+
+    public TermDictionary() {
+        terms = new String[MIN_CAPACITY];
+        table = new int[2 * MIN_CAPACITY];
+    }
+
+    /**
+     * A copy that does not change when terms are added to the original.
+     * The terms array is shared: the original only writes past the end of
+     * the copy, or grows into a new array.
+     */
+    private TermDictionary(TermDictionary other) {
+        terms = other.terms;
+        table = other.table.clone();
+        size = other.size;
+    }
+
+    public TermDictionary copy() {
+        return new TermDictionary(this);
+    }
+
+    private static int hash(String term) {
+        int h = term.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the ID of the term, or -1 if it is not in the dictionary.
+     */
+    public int getID(String term) {
+        int mask = table.length - 1;
+        for (int slot = hash(term) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (terms[id].equals(term)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the ID of the term, after assigning it the next free ID if
+     * it is new.
+     */
+    public int add(String term) {
+        int mask = table.length - 1;
+        int slot = hash(term) & mask;
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (terms[id].equals(term)) {
+                return id;
+            }
+        }
+        int id = size++;
+        if (id == terms.length) {
+            terms = Arrays.copyOf(terms, 2 * id);
+        }
+        terms[id] = term;
+        table[slot] = id + 1;
+        if (2 * size > table.length) {
+            rehash(2 * table.length);
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        int[] rehashed = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hash(terms[id]) & mask;
+            while (rehashed[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            rehashed[slot] = id + 1;
+        }
+        table = rehashed;
+    }
+
+    /**
+     * Returns the term with the given ID.
+     */
+    public String getTerm(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No term with ID " + id);
+        }
+        return terms[id];
+    }
+
+    /** The number of terms, one more than the highest ID. */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+/**
+ * Statistics of one term, kept in the dictionary so that a search can
+ * plan its work before any postings are read.
+ *
+ * @author Zehua
+ */
+public class TermStats {
+
+    /** Number of documents containing the term. */
+    public int df;
+
+    /** Total number of occurrences of the term. */
+    public long ttf;
+
+    /** The highest term frequency in a single document. */
+    public int maxTf;
+
+    /** Size of the postings of the term on disk in bytes, 0 in memory. */
+    public long bytes;
+
+    public TermStats(int df, long ttf, int maxTf, long bytes) {
+        this.df = df;
+        this.ttf = ttf;
+        this.maxTf = maxTf;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Computes the statistics of a postings list in memory.
+     */
+    public static TermStats of(PostingsList postingsList) {
+        long ttf = 0;
+        int maxTf = 0;
+        for (int i = 0; i < postingsList.size(); i++) {
+            int tf = postingsList.freq(i);
+            ttf += tf;
+            maxTf = Math.max(maxTf, tf);
+        }
+        return new TermStats(postingsList.size(), ttf, maxTf, 0);
+    }
+
+    /**
+     * Adds the statistics of the same term in another part of the index.
+     */
+    public void add(TermStats other) {
+        df += other.df;
+        ttf += other.ttf;
+        maxTf = Math.max(maxTf, other.maxTf);
+        bytes += other.bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "df=" + df + " ttf=" + ttf + " maxTf=" + maxTf + " bytes=" + bytes;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Picks segments to merge by their size. Segments are put in tiers: a
+ * segment up to floorSegmentBytes is in tier 0, and every tier above
+ * holds segments mergeFactor times larger than the tier below. When
+ * mergeFactor neighbouring segments are in the same tier they are merged
+ * into one segment of the next tier, so every byte is merged about once
+ * per tier and the number of segments grows only logarithmically.
+ *
+ * Only neighbours are merged, since a merge concatenates the postings of
+ * its segments and so needs consecutive docID ranges.
+ *
+ * @author Zehua
+ */
+public class TieredMergePolicy {
+
+    /** Number of segments of the same tier that are merged into one. */
+    int mergeFactor = 10;
+
+    /** Segments up to this size are all in the lowest tier (2 MB). */
+    long floorSegmentBytes = 2L << 20;
+
+    /** Segments larger than this are never merged again (5 GB). */
+    long maxMergedSegmentBytes = 5L << 30;
+
+    /**
+     * The tier of a segment of the given size.
+     */
+    int getTier(long size) {
+        int tier = 0;
+        for (long limit = floorSegmentBytes; size > limit && limit < Long.MAX_VALUE / mergeFactor; limit *= mergeFactor) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * Finds the merges to run now.
+     *
+     * @param segments The segments in docID order
+     * @param merging  Segments that are being merged already
+     * @return Runs of neighbouring segments, each to be merged into one
+     */
+    public List<List<PersistentHashedIndex>> findMerges(List<PersistentHashedIndex> segments,
+                                                      Set<PersistentHashedIndex> merging) {
+        List<List<PersistentHashedIndex>> merges = new ArrayList<List<PersistentHashedIndex>>();
+        List<PersistentHashedIndex> run = new ArrayList<PersistentHashedIndex>();
+        int runTier = -1;
+        long runSize = 0;
+        for (PersistentHashedIndex segment: segments) {
+            long size = segment.sizeInBytes();
+            int tier = getTier(size);
+            if (merging.contains(segment) || size > maxMergedSegmentBytes || tier != runTier) {
+                run = new ArrayList<PersistentHashedIndex>();
+                runTier = tier;
+                runSize = 0;
+                if (merging.contains(segment) || size > maxMergedSegmentBytes) {
+                    runTier = -1;
+                    continue;
+                }
+            }
+            run.add(segment);
+            runSize += size;
+            if (run.size() == mergeFactor) {
+                if (runSize <= maxMergedSegmentBytes) {
+                    merges.add(run);
+                }
+                run = new ArrayList<PersistentHashedIndex>();
+                runSize = 0;
+            }
+        }
+        return merges;
+    }
+}